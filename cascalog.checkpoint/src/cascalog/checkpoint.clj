@@ -7,13 +7,14 @@
             [jackknife.seq :as seq])
   (:import [java.util Collection]
            [org.apache.log4j Logger]
-           [java.util.concurrent Semaphore]
+           [java.util.concurrent ExecutorCompletionService ExecutorService
+            Executors TimeUnit]
            [org.apache.hadoop.fs FileSystem Path]
            [org.apache.hadoop.conf Configuration]))
 
 (comment
   "Example usage."
-  (workflow ["/tmp/checkpoints"]
+  (workflow ["/tmp/checkpoints" :max-parallelism 2]
            aaa ([:tmp-dirs "/tmp/.../shredded"]
                   (run-shredder!)
                   (consolidate ...))
@@ -21,12 +22,17 @@
            ccc ([:deps [aaa bbb]])))
 
 (defstruct WorkflowNode ::tmp-dirs ::fn ::deps)
-(defstruct Workflow ::fs ::graph-atom ::checkpoint-dir ::last-node-atom)
+(defstruct Workflow
+  ::fs ::graph-atom ::checkpoint-dir ::last-node-atom ::max-parallelism)
 
-(defn mk-workflow [checkpoint-dir]
+(defn mk-workflow
+  "Returns an empty workflow. At most `max-parallelism` components run
+  at once; by default every component whose dependencies are done
+  runs."
+  [checkpoint-dir & {:keys [max-parallelism]}]
   (let [fs (h/filesystem)]
     (h/mkdirs fs checkpoint-dir)
-    (struct Workflow fs (atom {}) checkpoint-dir (atom nil))))
+    (struct Workflow fs (atom {}) checkpoint-dir (atom nil) max-parallelism)))
 
 (defn add-component*
   "Ideal version of this will take the tmp-dirs symbols and slap them
@@ -48,66 +54,102 @@
     (reset! (::last-node-atom workflow) name)
     name))
 
-(defn- mk-runner
-  [fs token node status-atom sem log]
-  (let [config conf/*JOB-CONF*]
-    (Thread.
-     (fn []
-       (with-job-conf config
-         (try (if-not (.exists fs (h/path token))
-                (do (doseq [t (::tmp-dirs node)]
-                      (h/delete fs t true))
-                    ((::fn node))
-                    (when-not (.createNewFile fs (h/path token))
-                      (u/throw-runtime
-                       (str "Unable to make checkpoint token " token))))
-                (.info log (str "Skipping " token "...")))
-              (reset! status-atom :successful)
-              (catch Throwable t
-                (.error log "Component failed" t)
-                (reset! status-atom :failed))
-              (finally (.release sem))))))))
+;; Nodes run on a fixed pool of ::max-parallelism threads. A node
+;; becomes ready once its last dependency succeeds; among the ready
+;; nodes, the one heading the longest chain of dependents starts first.
+
+(defn- run-node!
+  "Runs the node unless its checkpoint token exists. Returns [name
+  status]."
+  [fs log config name token node]
+  (with-job-conf config
+    (try (if-not (.exists fs (h/path token))
+           (do (doseq [t (::tmp-dirs node)]
+                 (h/delete fs t true))
+               ((::fn node))
+               (when-not (.createNewFile fs (h/path token))
+                 (u/throw-runtime
+                  (str "Unable to make checkpoint token " token))))
+           (.info log (str "Skipping " token "...")))
+         [name :successful]
+         (catch Throwable t
+           (.error log "Component failed" t)
+           [name :failed]))))
+
+(defn- dependents
+  "Returns a map of each node name to the names of the nodes that
+  depend on it."
+  [graph]
+  (reduce (fn [m [name node]]
+            (reduce #(update-in %1 [%2] conj name) m (::deps node)))
+          (zipmap (keys graph) (repeat []))
+          graph))
+
+(defn- critical-paths
+  "Returns a map of each node name to the number of nodes on the
+  longest chain that starts at it."
+  [children-of]
+  (letfn [(walk [lengths name]
+            (if (contains? lengths name)
+              lengths
+              (let [children (children-of name)
+                    lengths  (reduce walk lengths children)]
+                (assoc lengths name
+                       (inc (reduce max 0 (map lengths children)))))))]
+    (reduce walk {} (keys children-of))))
 
 (defn- fail-workflow!
-  [log nodes-map]
-  (let [nodes (vals nodes-map)
-        running-nodes (filter #(= :running @(::status %)) nodes)
-        threads (map ::runner-thread nodes)]
-    (.info log "Workflow failed - interrupting components")
-    (doseq [t threads] (.interrupt t))
-    (.info log "Waiting for running components to finish")
-    (doseq [t threads] (.join t))
-    (u/throw-runtime "Workflow failed")))
+  [log ^ExecutorService pool]
+  (.info log "Workflow failed - interrupting components")
+  (.shutdownNow pool)
+  (.info log "Waiting for running components to finish")
+  (.awaitTermination pool Long/MAX_VALUE TimeUnit/MILLISECONDS)
+  (u/throw-runtime "Workflow failed"))
 
 (defn exec-workflow! [workflow]
   (let [fs (h/filesystem)
         log (Logger/getLogger "checkpointed-workflow")
-        sem (Semaphore. 0)
-        nodes (into {}
-                    (for [[k v] @(::graph-atom workflow)
-                          :let [status-atom (atom :unstarted)]]
-                      [k (assoc v
-                           ::status status-atom
-                           ::runner-thread (mk-runner
-                                            fs
-                                            (str (::checkpoint-dir workflow)
-                                                 "/" k)
-                                            v
-                                            status-atom
-                                            sem
-                                            log))]))]
-    (loop []
-      (doseq [[name node] nodes]
-        (when (and (= :unstarted @(::status node))
-                   (every? (fn [[_ n]] (= :successful @(::status n)))
-                           (select-keys nodes (::deps node))))
-          (reset! (::status node) :running)
-          (.start (::runner-thread node))))
-      (.acquire sem)
-      (let [statuses (set (map (fn [[_ n]] @(::status n)) nodes))]
-        (cond (contains? statuses :failed) (fail-workflow! log nodes)
-              (some #{:running :unstarted} statuses) (recur)
-              :else (.info log "Workflow completed successfully"))))
+        config conf/*JOB-CONF*
+        nodes @(::graph-atom workflow)
+        known? (partial contains? nodes)
+        graph (into {} (for [[k v] nodes]
+                         [k (update-in v [::deps] (partial filter known?))]))
+        children-of (dependents graph)
+        priority (critical-paths children-of)
+        limit (max 1 (or (::max-parallelism workflow) (count graph)))
+        pool (Executors/newFixedThreadPool limit)
+        done (ExecutorCompletionService. pool)
+        start! (fn [[_ name]]
+                 (let [token (str (::checkpoint-dir workflow) "/" name)
+                       ^Callable task #(run-node! fs log config name token
+                                                  (graph name))]
+                   (.submit done task)))
+        ready-entry (fn [name] [(- (priority name)) name])]
+    (loop [waiting (into {} (for [[k v] graph] [k (count (::deps v))]))
+           ready (into (sorted-set)
+                       (for [[k n] waiting :when (zero? n)] (ready-entry k)))
+           running 0
+           remaining (count graph)]
+      (if (zero? remaining)
+        (.info log "Workflow completed successfully")
+        (let [starts (take (- limit running) ready)
+              _ (doseq [entry starts] (start! entry))
+              running (+ running (count starts))
+              ready (reduce disj ready starts)]
+          (when (zero? running)
+            (.shutdown pool)
+            (u/throw-runtime "Workflow has unsatisfiable dependencies"))
+          (let [[name status] (.get (.take done))]
+            (when (= :failed status)
+              (fail-workflow! log pool))
+            (let [children (children-of name)
+                  waiting (reduce #(update-in %1 [%2] dec) waiting children)]
+              (recur waiting
+                     (into ready (for [c children :when (zero? (waiting c))]
+                                   (ready-entry c)))
+                     (dec running)
+                     (dec remaining)))))))
+    (.shutdown pool)
     (h/delete fs (::checkpoint-dir workflow) true)))
 
 (defmacro component [workflow name kwargs & body]
@@ -130,7 +172,7 @@
                 [sym `(str ~checkpoint-dir "/data/" ~s)]))
             tmp-syms)))
 
-(defmacro workflow [[checkpoint-dir] & bindings]
+(defmacro workflow [[checkpoint-dir & options] & bindings]
   (let [workflow-sym (gensym "workflow")
         tmp-bindings (build-dir-bindings checkpoint-dir bindings)
         bindings (->> (partition 2 bindings)
@@ -139,7 +181,7 @@
                                                    workflow-sym
                                                    (str name-sym)]
                                                   code)])))]
-    `(let [~workflow-sym (mk-workflow ~checkpoint-dir)
+    `(let [~workflow-sym (mk-workflow ~checkpoint-dir ~@options)
            ~@tmp-bindings
            ~@bindings]
        (exec-workflow! ~workflow-sym))))
@@ -1,5 +1,6 @@
 (ns cascalog.checkpoint-test
-  (:use cascalog.checkpoint))
+  (:use clojure.test
+        cascalog.checkpoint))
 
 (def sprint identity)
 
@@ -15,3 +16,58 @@
                    (sprint "ccc"))
             ddd ([:deps :all]
                    (sprint "ddd"))))
+
+(def dependents #'cascalog.checkpoint/dependents)
+(def critical-paths #'cascalog.checkpoint/critical-paths)
+
+(defn- node [& deps]
+  {:cascalog.checkpoint/deps deps})
+
+(deftest test-dependents
+  (is (= {"a" ["b" "c"] "b" ["c"] "c" [] "d" []}
+         (-> (dependents {"a" (node)
+                          "b" (node "a")
+                          "c" (node "a" "b")
+                          "d" (node)})
+             (update-in ["a"] sort)))))
+
+(deftest test-critical-paths
+  (is (= {"a" 3 "b" 2 "c" 1 "d" 1}
+         (critical-paths {"a" ["b" "c"] "b" ["c"] "c" [] "d" []}))))
+
+(defn- tmp-checkpoint-dir []
+  (str (System/getProperty "java.io.tmpdir") "/checkpoint-test-"
+       (java.util.UUID/randomUUID)))
+
+(deftest test-max-parallelism
+  (let [flow    (mk-workflow (tmp-checkpoint-dir) :max-parallelism 2)
+        running (atom 0)
+        peak    (atom 0)
+        run!    (fn []
+                  (swap! peak max (swap! running inc))
+                  (Thread/sleep 200)
+                  (swap! running dec))]
+    (doseq [name ["a" "b" "c" "d" "e"]]
+      (add-component* flow name run! :deps nil))
+    (exec-workflow! flow)
+    (is (= 2 @peak))))
+
+(deftest test-critical-path-first
+  (let [flow  (mk-workflow (tmp-checkpoint-dir) :max-parallelism 1)
+        order (atom [])
+        run!  (fn [name] #(swap! order conj name))]
+    (add-component* flow "short" (run! "short") :deps nil)
+    (add-component* flow "head" (run! "head") :deps nil)
+    (add-component* flow "mid" (run! "mid") :deps "head")
+    (add-component* flow "tail" (run! "tail") :deps "mid")
+    (exec-workflow! flow)
+    (is (= ["head" "mid" "short" "tail"] @order))))
+
+(deftest test-unsatisfiable-dependencies
+  (let [flow (mk-workflow (tmp-checkpoint-dir))
+        ran  (atom false)]
+    (add-component* flow "a" #(reset! ran true) :deps "b")
+    (add-component* flow "b" #(reset! ran true) :deps "a")
+    (is (thrown-with-msg? RuntimeException #"unsatisfiable"
+          (exec-workflow! flow)))
+    (is (not @ran))))
@@ -0,0 +1,13 @@
+(defproject cascalog-elasticsearch-bench "0.1.0"
+  :description "JMH benchmarks for cascalog-elasticsearch."
+  :source-path "src/clj"
+  :java-source-path "src/jvm"
+  :javac-options {:debug "true" :fork "true"}
+  :jvm-opts ["-Xmx1g" "-server"]
+  :main cascalog.elasticsearch.bench
+  :dependencies [[org.clojure/clojure "1.3.0"]
+                 [cascalog-elasticsearch "0.1.0"]
+                 [org.elasticsearch/elasticsearch "0.17.10"]
+                 [org.apache.hadoop/hadoop-core "0.20.2-dev"]
+                 [org.openjdk.jmh/jmh-core "1.3.4"]
+                 [org.openjdk.jmh/jmh-generator-annprocess "1.3.4"]])
@@ -0,0 +1,10 @@
+(ns cascalog.elasticsearch.bench
+  (:import [org.openjdk.jmh Main])
+  (:gen-class))
+
+(defn -main
+  "Runs the JMH benchmarks; arguments are passed through to JMH, so
+  `lein run -- -prof gc Bulk` runs the bulk benchmarks with the
+  allocation profiler."
+  [& args]
+  (Main/main (into-array String args)))
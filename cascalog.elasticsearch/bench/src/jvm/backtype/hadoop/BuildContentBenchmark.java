@@ -0,0 +1,48 @@
+package backtype.hadoop;
+
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Serializing a MapWritable record into the json the bulk request carries. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BuildContentBenchmark {
+
+    private LocalElasticNode node;
+    private ElasticSearchOutputFormat.ElasticSearchRecordWriter writer;
+    private MapWritable record;
+
+    @Setup
+    public void setup() throws IOException {
+        node = new LocalElasticNode();
+        writer = new ElasticSearchOutputFormat().new ElasticSearchRecordWriter(node.jobConf());
+        record = (MapWritable) ElasticUtil.toWritable(LocalElasticNode.doc(42));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close(Reporter.NULL);
+        node.close();
+    }
+
+    @Benchmark
+    public int buildContent() throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        writer.buildContent(builder, record);
+        return builder.unsafeBytesLength();
+    }
+}
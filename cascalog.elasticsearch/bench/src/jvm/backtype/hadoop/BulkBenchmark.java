@@ -0,0 +1,99 @@
+package backtype.hadoop;
+
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end throughput of the record writer and the record reader against the in-process node.
+ * Each invocation moves {@link #DOCS} documents, so the score is docs/sec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class BulkBenchmark {
+
+    public static final int DOCS = 10000;
+
+    private LocalElasticNode node;
+    private MapWritable[] records;
+    private Text[] jsons;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        node = new LocalElasticNode();
+        records = new MapWritable[DOCS];
+        jsons = new Text[DOCS];
+        for (int i = 0; i < DOCS; i++) {
+            records[i] = (MapWritable) ElasticUtil.toWritable(LocalElasticNode.doc(i));
+            jsons[i] = new Text(LocalElasticNode.json(i));
+        }
+        index(records);
+        node.refresh();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        node.close();
+    }
+
+    private void index(Writable[] values) throws IOException {
+        RecordWriter<Writable, Writable> writer = new ElasticSearchOutputFormat()
+            .getRecordWriter(null, node.jobConf(), null, Reporter.NULL);
+        for (Writable value : values) {
+            writer.write(NullWritable.get(), value);
+        }
+        writer.close(Reporter.NULL);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void indexMaps() throws IOException {
+        index(records);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void indexRawJson() throws IOException {
+        index(jsons);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public long read() throws IOException {
+        JobConf conf = node.jobConf();
+        ElasticSearchInputFormat format = new ElasticSearchInputFormat();
+        long count = 0;
+        for (InputSplit split : format.getSplits(conf, 1)) {
+            RecordReader<Text, Writable> reader = format.getRecordReader(split, conf, Reporter.NULL);
+            Text key = reader.createKey();
+            Writable value = reader.createValue();
+            while (reader.next(key, value)) {
+                count++;
+            }
+            reader.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,40 @@
+package backtype.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Converting a parsed document into Writables, allocating afresh against recycling. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+
+    private Map<String, Object> doc;
+    private ElasticWritableCodec codec;
+
+    @Setup
+    public void setup() {
+        doc = LocalElasticNode.doc(42);
+        codec = new ElasticWritableCodec();
+    }
+
+    @Benchmark
+    public Writable toWritable() {
+        return ElasticUtil.toWritable(doc);
+    }
+
+    @Benchmark
+    public Writable codecToWritable() {
+        codec.reset();
+        return codec.toWritable(doc);
+    }
+}
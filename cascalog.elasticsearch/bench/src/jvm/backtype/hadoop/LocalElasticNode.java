@@ -0,0 +1,123 @@
+package backtype.hadoop;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single elasticsearch node running inside the benchmark JVM. It talks over the local transport
+ * and keeps its data in a temporary directory, so no network and no external cluster is needed.
+ * The record readers and writers reach it through {@link ElasticClientPool}, whose client node
+ * joins it from the same elasticsearch.yml.
+ */
+public class LocalElasticNode {
+
+    public static final String INDEX = "bench";
+    public static final String TYPE = "doc";
+
+    private static final String ES_CONFIG = "es.config";
+    private static final String ES_PLUGINS = "es.path.plugins";
+
+    private final File home;
+    private final Node node;
+
+    public LocalElasticNode() throws IOException {
+        home = File.createTempFile("es-bench", "");
+        home.delete();
+        new File(home, "plugins").mkdirs();
+
+        File config = new File(home, "elasticsearch.yml");
+        Writer out = new FileWriter(config);
+        try {
+            out.write("cluster.name: cascalog-bench\n");
+            out.write("node.local: true\n");
+            out.write("gateway.type: none\n");
+            out.write("path.data: " + new File(home, "data").getAbsolutePath() + "\n");
+            out.write("index.number_of_shards: 1\n");
+            out.write("index.number_of_replicas: 0\n");
+        } finally {
+            out.close();
+        }
+        System.setProperty(ES_CONFIG, config.getAbsolutePath());
+        System.setProperty(ES_PLUGINS, new File(home, "plugins").getAbsolutePath());
+
+        node = NodeBuilder.nodeBuilder().node();
+        node.client().admin().cluster().prepareHealth().setWaitForYellowStatus().execute()
+            .actionGet();
+    }
+
+    public Client client() {
+        return node.client();
+    }
+
+    /** A job configuration for reading and writing the benchmark index on this node. */
+    public JobConf jobConf() {
+        JobConf conf = new JobConf();
+        conf.set(ES_CONFIG, System.getProperty(ES_CONFIG));
+        conf.set(ES_PLUGINS, System.getProperty(ES_PLUGINS));
+        conf.set("elasticsearch.index.name", INDEX);
+        conf.set("elasticsearch.object.type", TYPE);
+        conf.set("elasticsearch.id.field.name", "id");
+        conf.setInt("elasticsearch.bulk.size", 1000);
+        conf.setInt("elasticsearch.request.size", 1000);
+        conf.setInt("elasticsearch.num.input.splits", 1);
+        conf.setBoolean("elasticsearch.scroll", true);
+        return conf;
+    }
+
+    public void refresh() {
+        client().admin().indices().prepareRefresh(INDEX).execute().actionGet();
+    }
+
+    public void close() {
+        node.close();
+        delete(home);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** A small, mixed document like the ones the sinks see in practice. */
+    public static Map<String, Object> doc(int i) {
+        Map<String, Object> doc = new HashMap<String, Object>();
+        doc.put("id", "doc-" + i);
+        doc.put("user", "user-" + (i % 1000));
+        doc.put("count", (long) i);
+        doc.put("score", i / 7.0);
+        doc.put("active", i % 2 == 0);
+        List<Object> tags = new ArrayList<Object>();
+        tags.add("tag-" + (i % 10));
+        tags.add("tag-" + (i % 100));
+        doc.put("tags", tags);
+        Map<String, Object> location = new HashMap<String, Object>();
+        location.put("lat", 37.0 + i % 10);
+        location.put("lon", -122.0 - i % 10);
+        doc.put("location", location);
+        return doc;
+    }
+
+    /** The json of {@link #doc}. */
+    public static String json(int i) {
+        return "{\"id\":\"doc-" + i + "\",\"user\":\"user-" + (i % 1000) + "\",\"count\":" + i
+               + ",\"score\":" + (i / 7.0) + ",\"active\":" + (i % 2 == 0) + ",\"tags\":[\"tag-"
+               + (i % 10) + "\",\"tag-" + (i % 100) + "\"],\"location\":{\"lat\":"
+               + (37.0 + i % 10) + ",\"lon\":" + (-122.0 - i % 10) + "}}";
+    }
+}
@@ -0,0 +1,85 @@
+package backtype.hadoop;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** ElasticScheme turning tuples into records for the writer and records into tuples. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SchemeBenchmark {
+
+    private static final String[] PATHS = new String[]{"user", "count", "location.lat"};
+
+    private ElasticScheme parsed;
+    private ElasticScheme raw;
+    private ElasticScheme projected;
+    private TupleEntry entry;
+    private Text key;
+    private Text json;
+    private MapWritable fields;
+    private BlackholeCollector collector;
+
+    /** Hands every collected record to the blackhole, as the record writer would consume it. */
+    private static class BlackholeCollector implements OutputCollector {
+        Blackhole blackhole;
+
+        public void collect(Object key, Object value) throws IOException {
+            blackhole.consume(value);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        parsed = new ElasticScheme();
+        raw = new ElasticScheme(new Fields("json"), true);
+        projected = new ElasticScheme(new Fields("id", "user", "count", "lat"), PATHS);
+        entry = new TupleEntry(new Fields("json"), new Tuple(LocalElasticNode.json(42)));
+        key = new Text("doc-42");
+        json = new Text(LocalElasticNode.json(42));
+        fields = new MapWritable();
+        fields.put(new Text("user"), new Text("user-42"));
+        fields.put(new Text("count"), new LongWritable(42));
+        fields.put(new Text("location.lat"), new DoubleWritable(39.0));
+        collector = new BlackholeCollector();
+    }
+
+    @Benchmark
+    public void sinkParsed(Blackhole blackhole) throws IOException {
+        collector.blackhole = blackhole;
+        parsed.sink(entry, collector);
+    }
+
+    @Benchmark
+    public void sinkRaw(Blackhole blackhole) throws IOException {
+        collector.blackhole = blackhole;
+        raw.sink(entry, collector);
+    }
+
+    @Benchmark
+    public Tuple sourceJson() {
+        return parsed.source(key, json);
+    }
+
+    @Benchmark
+    public Tuple sourceFields() {
+        return projected.source(key, fields);
+    }
+}
@@ -4,7 +4,8 @@
   :java-source-path "src/jvm"
   :jvm-opts ["-Xmx768m" "-server"]
   :dependencies [[org.clojure/clojure "1.3.0"]
-                 [cascalog "1.8.4"]]
+                 [cascalog "1.8.4"]
+                 [org.elasticsearch/elasticsearch "0.17.10"]]
   :dev-dependencies [[swank-clojure "1.4.0-SNAPSHOT"]
                      [org.apache.hadoop/hadoop-core "0.20.2-dev"]
                      [lein-multi "1.1.0-SNAPSHOT"]
@@ -12,7 +13,9 @@
                      [lein-midje "1.0.4"]
                      [midje-cascalog "0.3.0"]]
   :multi-deps {"1.2" [[org.clojure/clojure "1.2.1"]
-                      [cascalog "1.8.4"]]
+                      [cascalog "1.8.4"]
+                      [org.elasticsearch/elasticsearch "0.17.10"]]
                "1.4" [[org.clojure/clojure "1.4.0-alpha2"]
-                      [cascalog "1.8.4"]]})
+                      [cascalog "1.8.4"]
+                      [org.elasticsearch/elasticsearch "0.17.10"]]})
 
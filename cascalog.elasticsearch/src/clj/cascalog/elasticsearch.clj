@@ -1,2 +1,172 @@
 (ns cascalog.elasticsearch
-  (:use cascalog.api))
+  (:use cascalog.api)
+  (:require [cascalog.conf :as conf])
+  (:import [backtype.hadoop ElasticScheme ElasticTap ElasticUtil
+            ElasticBulkLoadCommitter]
+           [cascading.tap SinkMode]
+           [cascading.tuple Fields]
+           [cascalog.ops IdentityBuffer]
+           [org.apache.hadoop.mapred JobConf]
+           [org.apache.log4j Logger]
+           [org.codehaus.jackson.map ObjectMapper]))
+
+(def ^{:private true} ^Logger log (Logger/getLogger "cascalog.elasticsearch"))
+
+(defn- stringify
+  "Turns keywords into strings, all the way down, so the clause can be
+  encoded as json."
+  [x]
+  (cond (keyword? x) (name x)
+        (map? x) (into {} (for [[k v] x] [(stringify k) (stringify v)]))
+        (coll? x) (vec (map stringify x))
+        :else x))
+
+(defn- filter-clause
+  [[op field arg]]
+  (let [op (name op)
+        field (name field)]
+    (case op
+      ("exists" "missing") {op field}
+      ("term" "terms" "prefix" "range") {op {field (stringify arg)}}
+      (throw (IllegalArgumentException.
+              (str "Unsupported filter clause: " op))))))
+
+(defn filters->json
+  "Encodes a sequence of filter clauses as the json expected by
+  elasticsearch.query.filters. Each clause is a vector of the filter,
+  the field and its argument:
+
+  [[:term :user \"sritchie\"]
+   [:terms :tag [\"clojure\" \"hadoop\"]]
+   [:range :age {:gte 18 :lt 65}]
+   [:prefix :name \"sam\"]
+   [:exists :email]
+   [:missing :deleted]]
+
+  All clauses must match."
+  [clauses]
+  (.writeValueAsString (ObjectMapper.) (map filter-clause clauses)))
+
+(defn- job-conf
+  "A JobConf carrying the settings of the current with-job-conf, for
+  talking to the cluster outside a flow."
+  []
+  (let [jc (JobConf.)]
+    (doseq [[k v] conf/*JOB-CONF*]
+      (.set jc (name k) (str v)))
+    jc))
+
+(defmapop [shard-id [shard-count]]
+  "Returns the shard elasticsearch routes the supplied routing value
+  to."
+  [routing]
+  (ElasticUtil/shardId (str routing) shard-count))
+
+(defn elastic<-
+  "Groups the [routing json] pairs of `doc-src` by the shard their
+  routing value hashes to, the way elephant<- groups keys, so every
+  reducer writes to as few shards as possible. The routing value is
+  usually the document id. Sink the result into a routed tap, which
+  routes each document and keeps every bulk request on one primary.
+
+  The shard count is looked up with the tap's own settings and the
+  current job conf. An index that doesn't exist yet counts the shards
+  it will be created with, elasticsearch.index.shards or the
+  elasticsearch default; a bulk load counts those of the index it
+  builds."
+  [elastic-tap doc-src]
+  (let [shard-count (.getNumShards elastic-tap (job-conf))]
+    (<- [!shard !routing !json]
+        (doc-src !routingraw !jsonraw)
+        (shard-id [shard-count] !routingraw :> !shard)
+        ((IdentityBuffer.) !routingraw !jsonraw :> !routing !json))))
+
+(defn- mk-scheme
+  [fields raw-json? routed?]
+  (cond routed?
+        (ElasticScheme. (Fields. (into-array String ["shard" "routing" "json"]))
+                        (boolean raw-json?)
+                        true)
+        (seq fields)
+        (let [paths (map name fields)]
+          (ElasticScheme. (Fields. (into-array String (cons "id" paths)))
+                          (into-array String paths)))
+        raw-json? (ElasticScheme. (Fields. (into-array String ["json"])) true)
+        :else (ElasticScheme.)))
+
+(def ^{:private true} sink-modes
+  {:keep SinkMode/KEEP
+   :replace SinkMode/REPLACE
+   :update SinkMode/UPDATE})
+
+(defn- tap-properties
+  [{:keys [query where splits request-size scroll? properties]}]
+  (->> {"elasticsearch.query.string" query
+        "elasticsearch.query.filters" (when (seq where)
+                                        (filters->json where))
+        "elasticsearch.num.input.splits" (when splits (str splits))
+        "elasticsearch.request.size" (when request-size (str request-size))
+        "elasticsearch.scroll" (when scroll? "true")}
+       (filter val)
+       (into {})
+       (merge (into {} (for [[k v] properties]
+                         [(name k) (str v)])))))
+
+(defn elastic-tap
+  "Returns a tap over the documents of `type` in `index`. The query
+  and filter clauses are pushed down into the search request, so only
+  matching documents ever reach Hadoop:
+
+  :query - lucene query string, matching everything by default.
+  :where - filter clauses, see `filters->json`.
+  :fields - field paths to fetch. The tap then sources the document
+            id followed by one value per field instead of the json.
+  :raw-json? - sink json strings or bytes without parsing them.
+  :routed? - sink [routing json] pairs through elastic<-, grouping
+             them by target shard before they are written.
+  :splits, :request-size, :scroll? - shorthand for the matching
+            elasticsearch.* settings.
+  :sink-mode - :update (the default) adds to the documents already
+               in the index, :replace deletes the index first and :keep
+               refuses to write to an existing index.
+  :properties - any other settings to set on the job."
+  [index type & {:keys [fields raw-json? routed? sink-mode]
+                 :or {sink-mode :update}
+                 :as opts}]
+  (let [props (tap-properties opts)
+        mode (or (sink-modes sink-mode)
+                 (throw (IllegalArgumentException.
+                         (str "Unknown sink mode: " sink-mode))))
+        tap (fn [scheme] (ElasticTap. index type scheme props mode))]
+    (if routed?
+      (let [sink-tap (tap (mk-scheme nil raw-json? true))]
+        (cascalog-tap (tap (mk-scheme fields raw-json? false))
+                      (fn [pairs]
+                        [sink-tap (elastic<- sink-tap pairs)])))
+      (tap (mk-scheme fields raw-json? false)))))
+
+(defn bulk-load!
+  "Runs `query` into a fresh index and, once the flow has succeeded,
+  points the alias `alias` at it, see ElasticBulkLoadCommitter. The
+  index is built with refresh disabled and no replicas; both are
+  restored before the alias moves. If the flow fails the new index is
+  deleted and the alias keeps pointing where it did. Takes the
+  options of elastic-tap; bulk load settings such as
+  elasticsearch.bulk.load.replicas or
+  elasticsearch.bulk.load.delete.previous go in :properties."
+  [alias type query & {:as opts}]
+  (let [opts (assoc-in opts [:properties "elasticsearch.bulk.load.alias"]
+                       alias)
+        opts (assoc-in opts [:properties "elasticsearch.index.name"]
+                       (ElasticBulkLoadCommitter/stagingIndex alias))
+        committer (ElasticTap. alias type (ElasticScheme.)
+                               (tap-properties opts))]
+    (try (?- (apply elastic-tap alias type (apply concat opts)) query)
+         (catch Throwable t
+           (try (.abortBulkLoad committer (job-conf))
+                (catch Throwable abort-failure
+                  (.error log (str "Could not clean up the bulk load of "
+                                   alias)
+                          abort-failure)))
+           (throw t)))
+    (.commitBulkLoad committer (job-conf))))
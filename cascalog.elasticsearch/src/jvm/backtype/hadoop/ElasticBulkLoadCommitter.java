@@ -0,0 +1,193 @@
+package backtype.hadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.OutputCommitter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutputCommitter for bulk loads. Instead of writing into a live index, the job builds a fresh,
+ * versioned index named after the alias in <b>elasticsearch.bulk.load.alias</b>, with refresh
+ * disabled and no replicas. When the job commits, the refresh interval and replica count are
+ * restored (<b>elasticsearch.bulk.load.refresh.interval</b>, default 1s, and
+ * <b>elasticsearch.bulk.load.replicas</b>, default 1), the index is optionally optimized down to
+ * <b>elasticsearch.bulk.load.max.segments</b> segments, and the alias is moved to it in a single
+ * atomic aliases request. Indices the alias pointed to before are deleted when
+ * <b>elasticsearch.bulk.load.delete.previous</b> is set. An aborted job deletes the new index, so
+ * readers of the alias never see a half built index. <p> Hadoop versions that predate
+ * commitJob/abortJob, 0.20.2 among them, only call cleanupJob, whatever the outcome of the job.
+ * There the flow has to be followed by {@link #commit} or {@link #abort}, with the same
+ * <b>elasticsearch.index.name</b> the job was given: pin it up front with {@link #stagingIndex}, as
+ * ElasticTap does, or use cascalog.elasticsearch/bulk-load!, which runs the flow and then commits
+ * or aborts.
+ */
+public class ElasticBulkLoadCommitter extends OutputCommitter {
+
+    static Log LOG = LogFactory.getLog(ElasticBulkLoadCommitter.class);
+
+    private static final String ES_INDEX_NAME = "elasticsearch.index.name";
+    private static final String ES_BULK_LOAD_ALIAS = "elasticsearch.bulk.load.alias";
+    private static final String ES_BULK_LOAD_SHARDS = "elasticsearch.bulk.load.shards";
+    private static final String ES_INDEX_SHARDS = "elasticsearch.index.shards";
+    private static final String ES_BULK_LOAD_REFRESH = "elasticsearch.bulk.load.refresh.interval";
+    private static final String ES_BULK_LOAD_REPLICAS = "elasticsearch.bulk.load.replicas";
+    private static final String ES_BULK_LOAD_SEGMENTS = "elasticsearch.bulk.load.max.segments";
+    private static final String ES_BULK_LOAD_DELETE = "elasticsearch.bulk.load.delete.previous";
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String NUMBER_OF_SHARDS = "index.number_of_shards";
+
+    /** A fresh name for the index a bulk load builds behind the alias. */
+    public static String stagingIndex(String alias) {
+        return alias + "_" + System.currentTimeMillis();
+    }
+
+    /**
+     * Switches the job into bulk load mode when <b>elasticsearch.bulk.load.alias</b> is set: points
+     * <b>elasticsearch.index.name</b> at a new versioned index and installs this committer. Must be
+     * called while the job is being configured, before it is submitted.
+     */
+    public static void configure(JobConf conf) {
+        String alias = conf.get(ES_BULK_LOAD_ALIAS);
+        if (alias == null) {
+            return;
+        }
+        String indexName = conf.get(ES_INDEX_NAME);
+        if (indexName == null || !indexName.startsWith(alias + "_")) {
+            indexName = stagingIndex(alias);
+            conf.set(ES_INDEX_NAME, indexName);
+        }
+        conf.setOutputCommitter(ElasticBulkLoadCommitter.class);
+        LOG.info("Bulk loading into [" + indexName + "] behind alias [" + alias + "]");
+    }
+
+    /**
+     * The number of shards the bulk load index is created with:
+     * <b>elasticsearch.bulk.load.shards</b>, else <b>elasticsearch.index.shards</b>, else the
+     * elasticsearch default. Known before the index exists, so documents can be grouped by shard
+     * while the flow is planned.
+     */
+    public static int numberOfShards(Configuration conf) {
+        return conf.getInt(ES_BULK_LOAD_SHARDS,
+            conf.getInt(ES_INDEX_SHARDS, ElasticUtil.DEFAULT_NUMBER_OF_SHARDS));
+    }
+
+    public void setupJob(JobContext context) throws IOException {
+        Configuration conf = context.getJobConf();
+        String indexName = conf.get(ES_INDEX_NAME);
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder()
+            .put(REFRESH_INTERVAL, "-1")
+            .put(NUMBER_OF_REPLICAS, 0)
+            .put(NUMBER_OF_SHARDS, numberOfShards(conf));
+
+        Client client = ElasticClientPool.acquireInTask(conf);
+        try {
+            LOG.info("Creating bulk load index [" + indexName + "]");
+            client.admin().indices().prepareCreate(indexName).setSettings(settings)
+                .execute().actionGet();
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    public void commitJob(JobContext context) throws IOException {
+        Client client = ElasticClientPool.acquireInTask(context.getJobConf());
+        try {
+            commit(client, context.getJobConf());
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    public void abortJob(JobContext context, int runState) throws IOException {
+        Client client = ElasticClientPool.acquireInTask(context.getJobConf());
+        try {
+            abort(client, context.getJobConf());
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    public void cleanupJob(JobContext context) throws IOException {
+    }
+
+    /**
+     * Restores the index settings, optionally optimizes the index and moves the alias onto it.
+     */
+    public static void commit(Client client, Configuration conf) {
+        String indexName = conf.get(ES_INDEX_NAME);
+        String alias = conf.get(ES_BULK_LOAD_ALIAS);
+
+        LOG.info("Restoring refresh and replicas of [" + indexName + "]");
+        client.admin().indices().prepareUpdateSettings(indexName)
+            .setSettings(ImmutableSettings.settingsBuilder()
+                .put(REFRESH_INTERVAL, conf.get(ES_BULK_LOAD_REFRESH, "1s"))
+                .put(NUMBER_OF_REPLICAS, conf.getInt(ES_BULK_LOAD_REPLICAS, 1)))
+            .execute().actionGet();
+
+        int maxSegments = conf.getInt(ES_BULK_LOAD_SEGMENTS, 0);
+        if (maxSegments > 0) {
+            LOG.info("Optimizing [" + indexName + "] down to [" + maxSegments + "] segments");
+            client.admin().indices().prepareOptimize(indexName).setMaxNumSegments(maxSegments)
+                .setWaitForMerge(true).execute().actionGet();
+        }
+        client.admin().indices().prepareRefresh(indexName).execute().actionGet();
+
+        List<String> previous = new ArrayList<String>();
+        for (IndexMetaData index : client.admin().cluster().prepareState().execute().actionGet()
+            .state().metaData()) {
+            if (index.aliases().containsKey(alias) && !index.index().equals(indexName)) {
+                previous.add(index.index());
+            }
+        }
+
+        LOG.info("Moving alias [" + alias + "] from " + previous + " to [" + indexName + "]");
+        IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases()
+            .addAlias(indexName, alias);
+        for (String index : previous) {
+            aliases.removeAlias(index, alias);
+        }
+        aliases.execute().actionGet();
+
+        if (conf.getBoolean(ES_BULK_LOAD_DELETE, false)) {
+            for (String index : previous) {
+                LOG.info("Deleting previous index [" + index + "]");
+                client.admin().indices().prepareDelete(index).execute().actionGet();
+            }
+        }
+    }
+
+    /** Deletes the index of a failed bulk load, if it got created. The alias is left alone. */
+    public static void abort(Client client, Configuration conf) {
+        String indexName = conf.get(ES_INDEX_NAME);
+        if (ElasticUtil.concreteIndices(client, indexName).contains(indexName)) {
+            LOG.info("Deleting bulk load index [" + indexName + "] of the aborted job");
+            client.admin().indices().prepareDelete(indexName).execute().actionGet();
+        }
+    }
+
+    public void setupTask(TaskAttemptContext context) throws IOException {
+    }
+
+    public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+        return false;
+    }
+
+    public void commitTask(TaskAttemptContext context) throws IOException {
+    }
+
+    public void abortTask(TaskAttemptContext context) throws IOException {
+    }
+}
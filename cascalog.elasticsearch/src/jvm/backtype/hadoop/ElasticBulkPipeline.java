@@ -0,0 +1,270 @@
+package backtype.hadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.action.bulk.BulkRequestBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends bulk requests to elasticsearch from a small pool of sender threads, so the record writer
+ * can keep building documents while earlier requests are in flight. At most
+ * <code>concurrentRequests</code> bulks execute at once and at most <code>queueSize</code> more
+ * wait behind them; once both are taken, {@link #submit} blocks until a request completes. With
+ * zero concurrent requests every bulk is executed synchronously on the calling thread. <p> Items
+ * rejected by an overloaded node, and whole bulks that fail in transport, are retried up to
+ * <code>maxRetries</code> times with exponential backoff. Items that still fail, or fail for any
+ * other reason, go to the dead letter file when one is set and are logged and dropped otherwise;
+ * only a bulk that cannot be delivered at all without a dead letter file fails the task.
+ */
+public class ElasticBulkPipeline {
+
+    static Log LOG = LogFactory.getLog(ElasticBulkPipeline.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Client client;
+    private int maxRetries = 0;
+    private long backoffMillis = 0;
+    private ElasticDeadLetters deadLetters = null;
+
+    // Used for bookkeeping purposes
+    private final AtomicLong totalBulkTime = new AtomicLong();
+    private final AtomicLong totalBulkRequests = new AtomicLong();
+    private final AtomicLong totalFailedItems = new AtomicLong();
+    private final AtomicLong totalRetriedItems = new AtomicLong();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+
+    private static final String REJECTED = "RejectedExecutionException";
+
+    public ElasticBulkPipeline(Client client, int concurrentRequests, int queueSize) {
+        this.client = client;
+        if (concurrentRequests > 0) {
+            this.slots = new Semaphore(concurrentRequests + queueSize);
+            this.executor = new ThreadPoolExecutor(concurrentRequests, concurrentRequests, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new SenderFactory());
+        } else {
+            this.slots = null;
+            this.executor = null;
+        }
+        LOG.info("Bulk pipeline with [" + concurrentRequests + "] concurrent requests and ["
+                 + queueSize + "] queued requests");
+    }
+
+    /** Notified from the sender threads as each bulk request completes. */
+    public interface Listener {
+        void afterBulk(int numberOfActions, long tookMillis, BulkResponse response);
+
+        void afterFailure(int numberOfActions, long tookMillis, Throwable failure);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Retries rejected items and failed bulks, waiting backoffMillis * 2^attempt in between. */
+    public void setRetries(int maxRetries, long backoffMillis) {
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public void setDeadLetters(ElasticDeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * Hands a bulk request to the pipeline, blocking while the pipeline is full. A failure of any
+     * earlier request is rethrown here.
+     */
+    public void submit(final BulkRequestBuilder request) throws IOException {
+        checkFailure();
+        if (executor == null) {
+            execute(request);
+            checkFailure();
+            return;
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a bulk request slot");
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    execute(request);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    private void execute(BulkRequestBuilder request) {
+        if (failure.get() != null) {
+            return; // the task is going to fail anyway, don't pile on more work
+        }
+        try {
+            for (int attempt = 0; request != null; attempt++) {
+                if (attempt > 0) {
+                    Thread.sleep(backoffMillis << Math.min(attempt - 1, 16));
+                }
+                request = attempt(request, attempt < maxRetries);
+            }
+        } catch (Throwable t) {
+            LOG.warn("Bulk request failed: " + t.getMessage());
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    /**
+     * Executes one attempt of a bulk request and returns the request to retry, holding only the
+     * retryable items, or null when nothing is left to retry.
+     */
+    private BulkRequestBuilder attempt(BulkRequestBuilder request, boolean canRetry)
+        throws IOException {
+        int numberOfActions = request.numberOfActions();
+        long startTime = System.currentTimeMillis();
+        BulkResponse response;
+        try {
+            response = request.execute().actionGet();
+        } catch (RuntimeException e) {
+            for (Listener listener : listeners) {
+                listener.afterFailure(numberOfActions, System.currentTimeMillis() - startTime, e);
+            }
+            if (canRetry) {
+                LOG.warn("Bulk request failed, retrying: " + e.getMessage());
+                totalRetriedItems.addAndGet(numberOfActions);
+                return request;
+            } else if (deadLetters == null) {
+                throw e;
+            }
+            List<ActionRequest> items = request.request().requests();
+            for (ActionRequest item : items) {
+                deadLetter((IndexRequest) item, String.valueOf(e.getMessage()));
+            }
+            return null;
+        }
+        long tookMillis = System.currentTimeMillis() - startTime;
+        totalBulkTime.addAndGet(tookMillis);
+        totalBulkRequests.incrementAndGet();
+        bulkLatency.record(tookMillis);
+        for (Listener listener : listeners) {
+            listener.afterBulk(numberOfActions, tookMillis, response);
+        }
+        if (!response.hasFailures()) {
+            return null;
+        }
+
+        List<ActionRequest> items = request.request().requests();
+        List<IndexRequest> retries = new ArrayList<IndexRequest>();
+        for (BulkItemResponse item : response.items()) {
+            if (!item.failed()) {
+                continue;
+            }
+            IndexRequest indexRequest = (IndexRequest) items.get(item.itemId());
+            String message = item.failureMessage();
+            if (canRetry && String.valueOf(message).contains(REJECTED)) {
+                retries.add(indexRequest);
+            } else {
+                deadLetter(indexRequest, message);
+            }
+        }
+        if (retries.isEmpty()) {
+            return null;
+        }
+        totalRetriedItems.addAndGet(retries.size());
+        LOG.warn("Retrying [" + retries.size() + "] rejected items of a bulk of ["
+                 + numberOfActions + "]");
+        BulkRequestBuilder retry = client.prepareBulk();
+        for (IndexRequest indexRequest : retries) {
+            retry.add(indexRequest);
+        }
+        return retry;
+    }
+
+    private void deadLetter(IndexRequest request, String message) throws IOException {
+        totalFailedItems.incrementAndGet();
+        if (deadLetters != null) {
+            deadLetters.write(request, message);
+        } else {
+            LOG.warn("Failed to index document [" + request.id() + "]: " + message);
+        }
+    }
+
+    /** Waits for every submitted request to complete and stops the sender threads. */
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.info("Waiting for [" + (executor.getActiveCount() + executor.getQueue()
+                        .size()) + "] bulk requests to complete");
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while draining bulk requests");
+            }
+        }
+        if (deadLetters != null) {
+            deadLetters.close();
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("Bulk request failed: " + t.getMessage(), t);
+        }
+    }
+
+    public long getTotalBulkTime() {
+        return totalBulkTime.get();
+    }
+
+    public long getTotalBulkRequests() {
+        return totalBulkRequests.get();
+    }
+
+    public long getTotalFailedItems() {
+        return totalFailedItems.get();
+    }
+
+    public long getTotalRetriedItems() {
+        return totalRetriedItems.get();
+    }
+
+    public LatencyHistogram getBulkLatency() {
+        return bulkLatency;
+    }
+
+    private static class SenderFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "es-bulk-sender-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
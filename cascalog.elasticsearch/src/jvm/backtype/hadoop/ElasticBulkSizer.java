@@ -0,0 +1,78 @@
+package backtype.hadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+/**
+ * Adapts the number of actions per bulk request to the latency the cluster is showing. Bulks that
+ * come back within the target latency grow the batch by a tenth; slower bulks shrink it by a
+ * quarter and rejected executions halve it. The size always stays within [min, max].
+ */
+public class ElasticBulkSizer implements ElasticBulkPipeline.Listener {
+
+    static Log LOG = LogFactory.getLog(ElasticBulkSizer.class);
+
+    private static final String REJECTED = "RejectedExecutionException";
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyMillis;
+    private volatile int bulkSize;
+
+    public ElasticBulkSizer(int initialSize, int minSize, int maxSize, long targetLatencyMillis) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.bulkSize = clamp(initialSize);
+    }
+
+    public int getBulkSize() {
+        return bulkSize;
+    }
+
+    public synchronized void afterBulk(int numberOfActions, long tookMillis,
+        BulkResponse response) {
+        if (isRejected(response)) {
+            resize(bulkSize / 2, "rejected executions");
+        } else if (numberOfActions < bulkSize / 2) {
+            return; // bulks flushed early by bytes or time say little about the batch size
+        } else if (tookMillis > targetLatencyMillis) {
+            resize(bulkSize - bulkSize / 4, tookMillis + "ms bulk latency");
+        } else {
+            resize(bulkSize + Math.max(1, bulkSize / 10), tookMillis + "ms bulk latency");
+        }
+    }
+
+    public synchronized void afterFailure(int numberOfActions, long tookMillis,
+        Throwable failure) {
+        if (String.valueOf(failure).contains(REJECTED)) {
+            resize(bulkSize / 2, "rejected execution");
+        }
+    }
+
+    private boolean isRejected(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return false;
+        }
+        for (BulkItemResponse item : response.items()) {
+            if (item.failed() && String.valueOf(item.failureMessage()).contains(REJECTED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void resize(int newSize, String reason) {
+        int clamped = clamp(newSize);
+        if (clamped != bulkSize) {
+            LOG.debug("Resizing bulk from [" + bulkSize + "] to [" + clamped + "] after " + reason);
+            bulkSize = clamped;
+        }
+    }
+
+    private int clamp(int size) {
+        return Math.min(maxSize, Math.max(minSize, size));
+    }
+}
@@ -0,0 +1,228 @@
+package backtype.hadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Process wide cache of elasticsearch clients. Starting an embedded client node joins the cluster,
+ * which takes seconds, so every input format, record reader and record writer in a JVM shares one
+ * client per cluster configuration. Clients are reference counted; once the last user releases a
+ * client it lingers for <b>elasticsearch.client.linger.ms</b> (default 30s) so the next task in a
+ * reused JVM can pick it up, and is closed afterwards or when the JVM exits. <p> When
+ * <b>elasticsearch.transport.hosts</b> holds a comma separated list of host:port pairs, a
+ * lightweight transport client connected to those hosts (and named cluster
+ * <b>elasticsearch.cluster.name</b>) is used instead of an embedded client node. It needs neither
+ * elasticsearch.yml nor the plugins archive and does not join the cluster state.
+ */
+public class ElasticClientPool {
+
+    static Log LOG = LogFactory.getLog(ElasticClientPool.class);
+
+    private static final String ES_CLIENT_LINGER = "elasticsearch.client.linger.ms";
+    private static final long DEFAULT_CLIENT_LINGER = 30000;
+    private static final String ES_TRANSPORT_HOSTS = "elasticsearch.transport.hosts";
+    private static final String ES_TRANSPORT_SNIFF = "elasticsearch.transport.sniff";
+    private static final String ES_CLUSTER_NAME = "elasticsearch.cluster.name";
+    private static final String DEFAULT_CLUSTER_NAME = "elasticsearch";
+    private static final int DEFAULT_TRANSPORT_PORT = 9300;
+    private static final String ES_CONFIG = "es.config";
+    private static final String ES_PLUGINS = "es.path.plugins";
+    private static final String ES_CONFIG_NAME = "elasticsearch.yml";
+    private static final String ES_PLUGINS_NAME = "plugins";
+    private static final String SLASH = "/";
+
+    private static final Map<String, PooledClient> clients = new HashMap<String, PooledClient>();
+    private static final Map<Client, PooledClient> byClient =
+        new IdentityHashMap<Client, PooledClient>();
+    private static Timer reaper;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("es-client-pool-shutdown") {
+            public void run() {
+                closeAll();
+            }
+        });
+    }
+
+    private static class PooledClient {
+        final String key;
+        final Node node;
+        final Client client;
+        final long lingerMillis;
+        int references = 0;
+        TimerTask pendingClose;
+
+        PooledClient(String key, Node node, Client client, long lingerMillis) {
+            this.key = key;
+            this.node = node;
+            this.client = client;
+            this.lingerMillis = lingerMillis;
+        }
+
+        void close() {
+            LOG.info("Closing elasticsearch client [" + key + "]");
+            client.close();
+            if (node != null) {
+                node.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the shared client for the cluster configuration in effect, starting it on first use.
+     * Every call must be paired with a call to {@link #release}.
+     */
+    public static synchronized Client acquire(Configuration conf) {
+        String key = clientKey(conf);
+        PooledClient pooled = clients.get(key);
+        if (pooled == null) {
+            pooled = start(key, conf);
+            clients.put(key, pooled);
+            byClient.put(pooled.client, pooled);
+        } else if (pooled.pendingClose != null) {
+            pooled.pendingClose.cancel();
+            pooled.pendingClose = null;
+        }
+        pooled.references++;
+        return pooled.client;
+    }
+
+    /**
+     * Like {@link #acquire}, for use inside a task: unless a transport client is configured,
+     * elasticsearch.yml and the plugins directory are taken from the distributed cache first.
+     * When they are not in the cache, as under the local job runner, es.config and
+     * es.path.plugins are left as they are.
+     */
+    public static Client acquireInTask(Configuration conf) {
+        if (!usesTransport(conf)) {
+            try {
+                String taskConfigPath = ElasticUtil.fetchFileFromCache(ES_CONFIG_NAME, conf);
+                String taskPluginsPath = ElasticUtil.fetchArchiveFromCache(ES_PLUGINS_NAME, conf);
+                if (taskConfigPath != null && taskPluginsPath != null) {
+                    LOG.info("Using [" + taskConfigPath + "] as es.config");
+                    LOG.info("Using [" + taskPluginsPath + "] as es.plugins.dir");
+                    System.setProperty(ES_CONFIG, taskConfigPath);
+                    System.setProperty(ES_PLUGINS, taskPluginsPath + SLASH + ES_PLUGINS_NAME);
+                } else {
+                    LOG.info("No elasticsearch config in the distributed cache, using ["
+                             + System.getProperty(ES_CONFIG) + "] as es.config");
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return acquire(conf);
+    }
+
+    /**
+     * True when clients for this configuration connect over the transport protocol, in which case
+     * callers need not fetch elasticsearch.yml or the plugins from the distributed cache.
+     */
+    public static boolean usesTransport(Configuration conf) {
+        String hosts = conf.get(ES_TRANSPORT_HOSTS);
+        return hosts != null && hosts.trim().length() > 0;
+    }
+
+    /** Gives a client obtained from {@link #acquire} back to the pool. */
+    public static synchronized void release(Client client) {
+        final PooledClient pooled = byClient.get(client);
+        if (pooled == null || pooled.references == 0) {
+            LOG.warn("Released an elasticsearch client that is not in use");
+            return;
+        }
+        if (--pooled.references > 0) {
+            return;
+        }
+        if (pooled.lingerMillis <= 0) {
+            remove(pooled);
+            return;
+        }
+        pooled.pendingClose = new TimerTask() {
+            public void run() {
+                synchronized (ElasticClientPool.class) {
+                    if (pooled.references == 0 && pooled.pendingClose == this) {
+                        remove(pooled);
+                    }
+                }
+            }
+        };
+        reaper().schedule(pooled.pendingClose, pooled.lingerMillis);
+    }
+
+    private static PooledClient start(String key, Configuration conf) {
+        long lingerMillis = conf.getLong(ES_CLIENT_LINGER, DEFAULT_CLIENT_LINGER);
+        if (usesTransport(conf)) {
+            return new PooledClient(key, null, start_transport_client(conf), lingerMillis);
+        }
+        LOG.info("Starting embedded elasticsearch client ...");
+        Node node = NodeBuilder.nodeBuilder().client(true).node();
+        return new PooledClient(key, node, node.client(), lingerMillis);
+    }
+
+    private static Client start_transport_client(Configuration conf) {
+        String clusterName = conf.get(ES_CLUSTER_NAME, DEFAULT_CLUSTER_NAME);
+        LOG.info("Starting elasticsearch transport client for cluster [" + clusterName + "] on ["
+                 + conf.get(ES_TRANSPORT_HOSTS) + "] ...");
+        TransportClient client = new TransportClient(ImmutableSettings.settingsBuilder()
+            .put("cluster.name", clusterName)
+            .put("client.transport.sniff", conf.getBoolean(ES_TRANSPORT_SNIFF, false)).build());
+        for (String host : conf.getStrings(ES_TRANSPORT_HOSTS)) {
+            String[] hostAndPort = host.trim().split(":");
+            int port = (hostAndPort.length > 1)
+                ? Integer.parseInt(hostAndPort[1]) : DEFAULT_TRANSPORT_PORT;
+            client.addTransportAddress(new InetSocketTransportAddress(hostAndPort[0], port));
+        }
+        return client;
+    }
+
+    /**
+     * Transport clients are keyed by cluster name and hosts. The embedded client node is
+     * configured from the es.config and es.path.plugins system properties, which callers set
+     * before acquiring a client.
+     */
+    private static String clientKey(Configuration conf) {
+        if (usesTransport(conf)) {
+            return "transport:" + conf.get(ES_CLUSTER_NAME, DEFAULT_CLUSTER_NAME) + ":"
+                   + conf.get(ES_TRANSPORT_HOSTS);
+        }
+        return "node:" + System.getProperty(ES_CONFIG) + ":" + System.getProperty(ES_PLUGINS);
+    }
+
+    private static void remove(PooledClient pooled) {
+        clients.remove(pooled.key);
+        byClient.remove(pooled.client);
+        pooled.close();
+    }
+
+    private static Timer reaper() {
+        if (reaper == null) {
+            reaper = new Timer("es-client-pool-reaper", true);
+        }
+        return reaper;
+    }
+
+    private static synchronized void closeAll() {
+        for (PooledClient pooled : clients.values()) {
+            try {
+                pooled.close();
+            } catch (Exception e) {
+                LOG.warn("Failed to close elasticsearch client [" + pooled.key + "]", e);
+            }
+        }
+        clients.clear();
+        byClient.clear();
+    }
+}
@@ -0,0 +1,15 @@
+package backtype.hadoop;
+
+/** Hadoop counters kept by the elasticsearch record readers and writers. */
+public enum ElasticCounter {
+    DOCS_READ,
+    BYTES_READ,
+    SEARCH_REQUESTS,
+    SEARCH_TIME_MS,
+    DOCS_WRITTEN,
+    BYTES_WRITTEN,
+    BULK_REQUESTS,
+    BULK_TIME_MS,
+    FAILED_ITEMS,
+    RETRIED_ITEMS
+}
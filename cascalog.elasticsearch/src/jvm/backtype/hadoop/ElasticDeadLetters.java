@@ -0,0 +1,60 @@
+package backtype.hadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.IOException;
+
+/**
+ * Collects documents elasticsearch refused to index into a file under the dead letter directory,
+ * one file per task attempt. Each line holds the document id, the failure message and the json
+ * source, separated by tabs. The file is only created once the first document is written.
+ */
+public class ElasticDeadLetters {
+
+    static Log LOG = LogFactory.getLog(ElasticDeadLetters.class);
+
+    private static final byte[] TAB = "\t".getBytes();
+    private static final byte[] NEWLINE = "\n".getBytes();
+
+    private final Path path;
+    private final Configuration conf;
+    private FSDataOutputStream out;
+    private long count = 0;
+
+    public ElasticDeadLetters(Path directory, Configuration conf) {
+        this.path = new Path(directory, "part-" + conf.get("mapred.task.id", "local"));
+        this.conf = conf;
+    }
+
+    public synchronized void write(IndexRequest request, String failureMessage)
+        throws IOException {
+        if (out == null) {
+            LOG.info("Writing dead letters to [" + path + "]");
+            out = path.getFileSystem(conf).create(path, true);
+        }
+        out.write(String.valueOf(request.id()).getBytes("UTF-8"));
+        out.write(TAB);
+        out.write(flatten(failureMessage).getBytes("UTF-8"));
+        out.write(TAB);
+        out.write(request.source());
+        out.write(NEWLINE);
+        count++;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            LOG.warn("Wrote [" + count + "] dead letters to [" + path + "]");
+        }
+    }
+
+    private static String flatten(String message) {
+        return String.valueOf(message).replace('\t', ' ').replace('\n', ' ');
+    }
+}
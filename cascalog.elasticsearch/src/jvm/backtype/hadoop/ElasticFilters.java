@@ -0,0 +1,100 @@
+package backtype.hadoop;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.elasticsearch.index.query.xcontent.FilterBuilders;
+import org.elasticsearch.index.query.xcontent.RangeFilterBuilder;
+import org.elasticsearch.index.query.xcontent.XContentFilterBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the json clauses of <b>elasticsearch.query.filters</b> into a filter that is pushed down
+ * into the search request. The clauses are a json array, each element a single entry object:
+ * <ul>
+ * <li><code>{"term": {"field": value}}</code></li>
+ * <li><code>{"terms": {"field": [value, ...]}}</code></li>
+ * <li><code>{"range": {"field": {"gt"|"gte"|"lt"|"lte": value, ...}}}</code></li>
+ * <li><code>{"prefix": {"field": "prefix"}}</code></li>
+ * <li><code>{"exists": "field"}</code> and <code>{"missing": "field"}</code></li>
+ * </ul>
+ * All clauses must match.
+ */
+public class ElasticFilters {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ElasticFilters() {}
+
+    /** The conjunction of the clauses, or null when there are none. */
+    public static XContentFilterBuilder parse(String json) throws IOException {
+        if (json == null) {
+            return null;
+        }
+        List<?> clauses = MAPPER.readValue(json, List.class);
+        List<XContentFilterBuilder> filters = new ArrayList<XContentFilterBuilder>();
+        for (Object clause : clauses) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) clause).entrySet()) {
+                filters.add(parseClause((String) entry.getKey(), entry.getValue()));
+            }
+        }
+        if (filters.isEmpty()) {
+            return null;
+        } else if (filters.size() == 1) {
+            return filters.get(0);
+        }
+        return FilterBuilders.andFilter(filters.toArray(new XContentFilterBuilder[filters.size()]));
+    }
+
+    private static XContentFilterBuilder parseClause(String type, Object body) {
+        if ("exists".equals(type)) {
+            return FilterBuilders.existsFilter((String) body);
+        } else if ("missing".equals(type)) {
+            return FilterBuilders.missingFilter((String) body);
+        }
+
+        Map.Entry<?, ?> field = singleEntry(type, body);
+        String name = (String) field.getKey();
+        Object value = field.getValue();
+        if ("term".equals(type)) {
+            return FilterBuilders.termFilter(name, value);
+        } else if ("terms".equals(type)) {
+            return FilterBuilders.termsFilter(name, ((List<?>) value).toArray());
+        } else if ("prefix".equals(type)) {
+            return FilterBuilders.prefixFilter(name, (String) value);
+        } else if ("range".equals(type)) {
+            return parseRange(name, (Map<?, ?>) value);
+        }
+        throw new IllegalArgumentException("unsupported filter clause [" + type + "]");
+    }
+
+    private static XContentFilterBuilder parseRange(String name, Map<?, ?> bounds) {
+        RangeFilterBuilder range = FilterBuilders.rangeFilter(name);
+        for (Map.Entry<?, ?> bound : bounds.entrySet()) {
+            String op = (String) bound.getKey();
+            if ("gt".equals(op)) {
+                range.gt(bound.getValue());
+            } else if ("gte".equals(op)) {
+                range.gte(bound.getValue());
+            } else if ("lt".equals(op)) {
+                range.lt(bound.getValue());
+            } else if ("lte".equals(op)) {
+                range.lte(bound.getValue());
+            } else {
+                throw new IllegalArgumentException(
+                    "unsupported range bound [" + op + "] on field [" + name + "]");
+            }
+        }
+        return range;
+    }
+
+    private static Map.Entry<?, ?> singleEntry(String type, Object body) {
+        if (!(body instanceof Map) || ((Map<?, ?>) body).size() != 1) {
+            throw new IllegalArgumentException(
+                "filter clause [" + type + "] takes a single field, not [" + body + "]");
+        }
+        return ((Map<?, ?>) body).entrySet().iterator().next();
+    }
+}
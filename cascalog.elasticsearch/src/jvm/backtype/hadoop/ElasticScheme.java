@@ -14,7 +14,10 @@ import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
 import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.log4j.Logger;
@@ -35,6 +38,14 @@ public class ElasticScheme extends Scheme {
     public static final Fields DEFAULT_FIELDS = new Fields("json");
     private static final Logger LOGGER = Logger.getLogger(ElasticScheme.class);
     protected ObjectMapper mapper = new ObjectMapper();
+    private boolean rawJson = false;
+    private boolean routed = false;
+    private String[] paths = null;
+    private transient Text[] pathKeys;
+    private transient ElasticWritableCodec codec;
+    private transient Text routingKey;
+
+    private static final String ES_FIELDS = "elasticsearch.fields";
 
     public ElasticScheme() {
         super(DEFAULT_FIELDS);
@@ -71,18 +82,66 @@ public class ElasticScheme extends Scheme {
         }
     }
 
+    /**
+     * With <code>rawJson</code> set, sunk json documents are handed to elasticsearch as they are
+     * instead of being parsed into a MapWritable and serialized again. The sink field may hold a
+     * String or the utf-8 bytes of the document.
+     */
+    @ConstructorProperties({"field", "rawJson"})
+    public ElasticScheme(Fields field, boolean rawJson) {
+        this(field);
+        this.rawJson = rawJson;
+    }
+
+    /**
+     * A sink for tuples of (shard, routing, json), as grouped by the elastic&lt;- assembly. The
+     * shard is only there to group by; the routing value is handed to the record writer, which
+     * routes each document with it and keeps every bulk request on a single shard.
+     */
+    @ConstructorProperties({"fields", "rawJson", "routed"})
+    public ElasticScheme(Fields fields, boolean rawJson, boolean routed) {
+        super(fields);
+
+        if (routed && fields.size() != 3) {
+            throw new IllegalArgumentException(
+                "a routed scheme requires shard, routing and json fields, not [" + fields + "]");
+        }
+        this.rawJson = rawJson;
+        this.routed = routed;
+    }
+
+    /**
+     * Sources only the given field paths of each document. They are fetched as stored or
+     * _source-extracted fields, so neither the full _source nor any json ever reaches the tuple:
+     * the first source field receives the document id and each following field the typed value
+     * of the matching path.
+     */
+    @ConstructorProperties({"fields", "paths"})
+    public ElasticScheme(Fields fields, String[] paths) {
+        super(fields);
+
+        if (fields.size() != paths.length + 1) {
+            throw new IllegalArgumentException(
+                "this scheme requires an id field plus one field per path, not [" + fields + "]");
+        }
+        this.paths = paths;
+    }
 
     @Override
     public void sourceInit(Tap tap, JobConf jobConf) throws IOException {
         jobConf.setInputFormat(ElasticSearchInputFormat.class);
+        if (paths != null) {
+            jobConf.setStrings(ES_FIELDS, paths);
+        }
         LOGGER.info(String
             .format("Initializing ElasticSearch source tap - field: %s", getSourceFields()));
     }
 
     @Override public void sinkInit(Tap tap, JobConf jobConf) throws IOException {
-        jobConf.setOutputKeyClass(NullWritable.class); // be explicit
-        jobConf.setOutputValueClass(MapWritable.class); // be explicit
+        jobConf.setOutputKeyClass(routed ? Text.class : NullWritable.class); // be explicit
+        jobConf.setOutputValueClass(rawJson ? Text.class : MapWritable.class); // be explicit
         jobConf.setOutputFormat(ElasticSearchOutputFormat.class);
+        ElasticBulkLoadCommitter.configure(jobConf);
 
         LOGGER.info(String
             .format("Initializing ElasticSearch sink tap - field: %s", getSinkFields()));
@@ -90,7 +149,11 @@ public class ElasticScheme extends Scheme {
 
     @Override
     public Tuple source(Object key, Object value) {
-        Tuple tuple = Tuple.size(2);
+        if (paths != null) {
+            return sourceFields(key, (MapWritable) value);
+        }
+
+        Tuple tuple = new Tuple();
 
         // TODO: Check that tuple value is json!
         tuple.add(key.toString());   // docID
@@ -98,23 +161,75 @@ public class ElasticScheme extends Scheme {
         return tuple;
     }
 
+    private Tuple sourceFields(Object key, MapWritable value) {
+        if (pathKeys == null) {
+            pathKeys = new Text[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                pathKeys[i] = new Text(paths[i]);
+            }
+        }
+
+        Tuple tuple = new Tuple();
+        tuple.add(key.toString()); // docID
+        for (Text pathKey : pathKeys) {
+            Writable field = value.get(pathKey);
+            tuple.add(ElasticUtil.fromWritable(field));
+        }
+        return tuple;
+    }
+
     @Override
     public void sink(TupleEntry tupleEntry, OutputCollector outputCollector) throws IOException {
-        MapWritable record = new MapWritable();
+        Writable key = NullWritable.get();
+        int jsonPos = 0;
+        if (routed && tupleEntry != null) {
+            if (routingKey == null) {
+                routingKey = new Text();
+            }
+            routingKey.set(tupleEntry.get(1).toString());
+            key = routingKey;
+            jsonPos = 2;
+        }
+
+        if (rawJson) {
+            sinkRaw(tupleEntry.get(jsonPos), key, outputCollector);
+            return;
+        }
+
+        MapWritable record = null;
         if (tupleEntry != null) {
-            String jsonData = tupleEntry.get(0).toString();
+            String jsonData = tupleEntry.get(jsonPos).toString();
 
             // parse json data and put into MapWritable record
             try {
                 HashMap<String, Object> data = mapper.readValue(jsonData, HashMap.class);
-                record = (MapWritable) ElasticUtil.toWritable(data);
+                if (codec == null) {
+                    codec = new ElasticWritableCodec();
+                }
+                codec.reset();
+                record = (MapWritable) codec.toWritable(data);
             } catch (JsonParseException e) {
                 e.printStackTrace();
             } catch (JsonMappingException e) {
                 e.printStackTrace();
             }
         }
+        if (record == null) {
+            record = new MapWritable();
+        }
+
+        outputCollector.collect(key, record);
+    }
 
-        outputCollector.collect(NullWritable.get(), record);
+    /** Passes the serialized document through untouched; the record writer reads its id. */
+    private void sinkRaw(Object json, Writable key, OutputCollector outputCollector)
+        throws IOException {
+        if (json instanceof byte[]) {
+            outputCollector.collect(key, new BytesWritable((byte[]) json));
+        } else if (json instanceof BytesWritable) {
+            outputCollector.collect(key, json);
+        } else {
+            outputCollector.collect(key, new Text(json.toString()));
+        }
     }
 }
@@ -4,15 +4,32 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.action.search.SearchRequestBuilder;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.xcontent.FilterBuilders;
 import org.elasticsearch.index.query.xcontent.QueryBuilders;
-import org.elasticsearch.node.Node;
-import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.index.query.xcontent.RangeFilterBuilder;
+import org.elasticsearch.index.query.xcontent.XContentFilterBuilder;
+import org.elasticsearch.index.query.xcontent.XContentQueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearch.search.facet.histogram.HistogramFacet;
+import org.elasticsearch.search.facet.statistical.StatisticalFacet;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -22,14 +39,15 @@ import java.util.List;
 /**
  * A Hadoop InputFormat to read data from an Elasticsearch index. The RecordReader divulges records
  * where the key is the record id in elasticsearch and the value is a json string of the (source)
- * record contents.
+ * record contents. When <b>elasticsearch.fields</b> lists field paths, only those fields are
+ * fetched and the value is a MapWritable from each path to its typed value instead. Clauses in
+ * <b>elasticsearch.query.filters</b> are applied by elasticsearch alongside the query string.
  */
-public class ElasticSearchInputFormat implements Configurable, InputFormat<Text, Text> {
+public class ElasticSearchInputFormat implements Configurable, InputFormat<Text, Writable> {
 
     static Log LOG = LogFactory.getLog(ElasticSearchInputFormat.class);
     private Configuration conf = null;
 
-    private Node node;
     private Client client;
 
     private Integer requestSize;
@@ -39,23 +57,58 @@ public class ElasticSearchInputFormat implements Configurable, InputFormat<Text,
     private String indexName;
     private String objType;
     private String queryString;
+    private XContentFilterBuilder filters;
+    private String splitMode;
+    private Integer splitsPerShard;
 
     private static final String ES_REQUEST_SIZE = "elasticsearch.request.size";
     // number of records to fetch at one time
     private static final String ES_NUM_SPLITS = "elasticsearch.num.input.splits";
     // number of hadoop map tasks to launch
     private static final String ES_QUERY_STRING = "elasticsearch.query.string";
+    private static final String MATCH_ALL_QUERY_STRING = "*:*";
+    private static final String ES_QUERY_FILTERS = "elasticsearch.query.filters";
+    // json array of term, terms, range, prefix, exists and missing clauses, see ElasticFilters
+    private static final String ES_SCROLL = "elasticsearch.scroll";
+    // stream each split through a scroll cursor, one request.size page at a time
+    private static final String ES_SCROLL_KEEPALIVE = "elasticsearch.scroll.keepalive";
+    // how long elasticsearch keeps the scroll context open between pages (eg. 5m)
+    private static final String DEFAULT_SCROLL_KEEPALIVE = "5m";
+    private static final String ES_SPLIT_MODE = "elasticsearch.split.mode";
+    // "offset" (default) slices a single result set, "shard" plans splits per index shard,
+    // "range" cuts the values of a numeric or date field into evenly filled ranges and "routing"
+    // plans one split per routing value
+    private static final String ES_SPLITS_PER_SHARD = "elasticsearch.splits.per.shard";
+    // number of splits to cut each shard into when planning by shard
+    private static final String ES_SPLIT_FIELD = "elasticsearch.split.field";
+    // numeric or date field whose values are partitioned when planning by range
+    private static final String ES_SPLIT_ROUTING_VALUES = "elasticsearch.split.routing.values";
+    // comma separated routing values to plan splits for when planning by routing
+    private static final String ES_SPLIT_ROUTING_FIELD = "elasticsearch.split.routing.field";
+    // field holding the routing value of each document, _routing by default
+    private static final String DEFAULT_SPLIT_ROUTING_FIELD = "_routing";
+    private static final String SPLIT_MODE_OFFSET = "offset";
+    private static final String SPLIT_MODE_SHARD = "shard";
+    private static final String SPLIT_MODE_RANGE = "range";
+    private static final String SPLIT_MODE_ROUTING = "routing";
+    private static final int RANGE_BUCKETS_PER_SPLIT = 16;
+    private static final String SHARD_PREFERENCE = "_shards:";
+    private static final String ES_FIELDS = "elasticsearch.fields";
+    // comma separated field paths to fetch instead of the whole _source
 
-    private static final String ES_CONFIG_NAME = "elasticsearch.yml";
-    private static final String ES_PLUGINS_NAME = "plugins";
     private static final String ES_INDEX_NAME = "elasticsearch.index.name";
     private static final String ES_OBJECT_TYPE = "elasticsearch.object.type";
     private static final String ES_CONFIG = "es.config";
     private static final String ES_PLUGINS = "es.path.plugins";
-    private static final String SLASH = "/";
 
-    public RecordReader<Text, Text> getRecordReader(InputSplit is, JobConf jc, Reporter reporter) {
-        return new ElasticSearchRecordReader();
+    public RecordReader<Text, Writable> getRecordReader(InputSplit is, JobConf jc, Reporter reporter)
+        throws IOException {
+        ElasticSearchRecordReader reader = new ElasticSearchRecordReader();
+        reader.initialize(is, jc);
+        if (reporter != null) {
+            reader.reporter = reporter;
+        }
+        return reader;
     }
 
     /** The number of splits is specified in the Hadoop configuration object. */
@@ -63,21 +116,213 @@ public class ElasticSearchInputFormat implements Configurable, InputFormat<Text,
 
         setConf(conf);
 
+        if (SPLIT_MODE_SHARD.equals(splitMode)) {
+            return getShardSplits();
+        } else if (SPLIT_MODE_RANGE.equals(splitMode) || SPLIT_MODE_ROUTING.equals(splitMode)) {
+            return getPartitionedSplits();
+        }
+
         List<InputSplit> splits = new ArrayList<InputSplit>(numSplits.intValue());
 
         for (int i = 0; i < numSplits; i++) {
-            Long size = (numSplitRecords == 1) ? 1 : numSplitRecords - 1;
-            splits.add(new ElasticSearchSplit(queryString, i * numSplitRecords, size));
+            splits.add(new ElasticSearchSplit(queryString, i * numSplitRecords, numSplitRecords));
         }
         if (numHits % numSplits > 0) {
             splits.add(new ElasticSearchSplit(queryString,
-                numSplits * numSplitRecords, numHits % numSplits - 1));
+                numSplits * numSplitRecords, numHits % numSplits));
         }
         LOG.info("Created [" + splits.size() + "] splits for [" + numHits + "] hits");
 
         return splits.toArray(new InputSplit[splits.size()]);
     }
 
+    /**
+     * Plans <b>elasticsearch.splits.per.shard</b> splits for every shard of the index. Each split
+     * only queries its own shard, reports the nodes holding that shard as its locations and the
+     * number of matching documents it covers as its length.
+     */
+    private InputSplit[] getShardSplits() {
+        client = ElasticClientPool.acquire(conf);
+        try {
+            return planShardSplits();
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    private InputSplit[] planShardSplits() {
+        ClusterState state = client.admin().cluster().prepareState().setFilterIndices(indexName)
+            .execute().actionGet().state();
+        IndexRoutingTable routingTable = state.routingTable().index(indexName);
+        if (routingTable == null) {
+            throw new IllegalStateException("No routing table found for index [" + indexName + "]");
+        }
+
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        for (IndexShardRoutingTable shardTable : routingTable.shards().values()) {
+            int shard = shardTable.shardId().id();
+            long shardHits = countShardHits(shard);
+            String[] locations = shardLocations(state, shardTable);
+            long splitRecords = Math.max(1, (shardHits + splitsPerShard - 1) / splitsPerShard);
+            for (long offset = 0; offset < shardHits; offset += splitRecords) {
+                long size = Math.min(splitRecords, shardHits - offset);
+                splits.add(new ElasticSearchSplit(queryString, offset, size, shard, locations));
+            }
+        }
+        LOG.info("Created [" + splits.size() + "] splits over [" + routingTable.shards().size()
+                 + "] shards for [" + numHits + "] hits");
+
+        return splits.toArray(new InputSplit[splits.size()]);
+    }
+
+    /**
+     * Plans splits that each run an independent query bounded by a range of
+     * <b>elasticsearch.split.field</b> or by one of <b>elasticsearch.split.routing.values</b>, so
+     * no split depends on the offset of another.
+     */
+    private InputSplit[] getPartitionedSplits() {
+        client = ElasticClientPool.acquire(conf);
+        try {
+            List<InputSplit> splits = SPLIT_MODE_RANGE.equals(splitMode)
+                ? planRangeSplits() : planRoutingSplits();
+            LOG.info("Created [" + splits.size() + "] " + splitMode + " splits for [" + numHits
+                     + "] hits");
+            return splits.toArray(new InputSplit[splits.size()]);
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    /**
+     * Samples the distribution of the split field with a statistical and a histogram facet, then
+     * closes a range whenever the buckets seen so far hold about numHits / numSplits hits. The
+     * outermost ranges are left open so documents outside the sampled bounds are still read.
+     */
+    private List<InputSplit> planRangeSplits() {
+        String field = conf.get(ES_SPLIT_FIELD);
+        if (field == null) {
+            throw new IllegalArgumentException(ES_SPLIT_FIELD + " must be set to split by range");
+        }
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        long targetSplits = Math.max(1, numSplits);
+
+        SearchResponse statsResponse = prepareCount()
+            .addFacet(FacetBuilders.statisticalFacet(field).field(field)).execute().actionGet();
+        StatisticalFacet stats = statsResponse.facets().facet(StatisticalFacet.class, field);
+        if (stats.count() == 0 || targetSplits == 1) {
+            splits.add(new ElasticSearchSplit(queryString, field, null, null, numHits));
+            return splits;
+        }
+
+        long min = (long) Math.floor(stats.min());
+        long max = (long) Math.ceil(stats.max());
+        long interval = Math.max(1, (max - min) / (targetSplits * RANGE_BUCKETS_PER_SPLIT) + 1);
+        SearchResponse histogramResponse = prepareCount()
+            .addFacet(FacetBuilders.histogramFacet(field).field(field).interval(interval))
+            .execute().actionGet();
+        HistogramFacet histogram = histogramResponse.facets().facet(HistogramFacet.class, field);
+
+        long target = Math.max(1, numHits / targetSplits);
+        Long lower = null;
+        long covered = 0;
+        for (HistogramFacet.Entry bucket : histogram.entries()) {
+            if (covered > 0 && covered + bucket.count() > target
+                && splits.size() < targetSplits - 1) {
+                splits.add(
+                    new ElasticSearchSplit(queryString, field, lower, bucket.key(), covered));
+                lower = bucket.key();
+                covered = 0;
+            }
+            covered += bucket.count();
+        }
+        splits.add(new ElasticSearchSplit(queryString, field, lower, null, covered));
+        return splits;
+    }
+
+    private List<InputSplit> planRoutingSplits() {
+        String[] routings = conf.getStrings(ES_SPLIT_ROUTING_VALUES);
+        if (routings == null) {
+            throw new IllegalArgumentException(
+                ES_SPLIT_ROUTING_VALUES + " must be set to split by routing");
+        }
+        List<InputSplit> splits = new ArrayList<InputSplit>(routings.length);
+        for (String routing : routings) {
+            ElasticSearchSplit probe = new ElasticSearchSplit(queryString, routing, 0);
+            SearchResponse response = prepareCount().setRouting(routing)
+                .setQuery(buildQuery(probe)).execute().actionGet();
+            splits.add(new ElasticSearchSplit(queryString, routing, response.hits().totalHits()));
+        }
+        return splits;
+    }
+
+    private SearchRequestBuilder prepareCount() {
+        return client.prepareSearch(indexName).setTypes(objType).setSearchType(SearchType.COUNT)
+            .setQuery(buildQuery(queryString, null));
+    }
+
+    /** The split query, narrowed by the range or routing filter of a partitioned split. */
+    private XContentQueryBuilder buildQuery(ElasticSearchSplit split) {
+        XContentFilterBuilder filter = null;
+        if (split.getRangeField() != null) {
+            RangeFilterBuilder range = FilterBuilders.rangeFilter(split.getRangeField())
+                .includeLower(true).includeUpper(false);
+            if (split.getRangeFrom() != null) {
+                range.from(split.getRangeFrom().longValue());
+            }
+            if (split.getRangeTo() != null) {
+                range.to(split.getRangeTo().longValue());
+            }
+            filter = range;
+        } else if (split.getRouting() != null) {
+            filter = FilterBuilders.termFilter(
+                conf.get(ES_SPLIT_ROUTING_FIELD, DEFAULT_SPLIT_ROUTING_FIELD), split.getRouting());
+        }
+        return buildQuery(split.getQueryString(), filter);
+    }
+
+    /** The query string, filtered by the pushed down filters and the given split filter. */
+    private XContentQueryBuilder buildQuery(String queryString, XContentFilterBuilder splitFilter) {
+        XContentQueryBuilder query = QueryBuilders.queryString(queryString);
+        XContentFilterBuilder filter = splitFilter;
+        if (filters != null) {
+            filter = (splitFilter == null)
+                ? filters : FilterBuilders.andFilter(filters, splitFilter);
+        }
+        return (filter == null) ? query : QueryBuilders.filteredQuery(query, filter);
+    }
+
+    private long countShardHits(int shard) {
+        SearchResponse response =
+            client.prepareSearch(indexName).setTypes(objType).setSearchType(SearchType.COUNT)
+                .setPreference(SHARD_PREFERENCE + shard)
+                .setQuery(buildQuery(queryString, null)).execute().actionGet();
+        return response.hits().totalHits();
+    }
+
+    /** Host names of the nodes holding an active copy of the shard, primary first. */
+    private String[] shardLocations(ClusterState state, IndexShardRoutingTable shardTable) {
+        List<String> hosts = new ArrayList<String>();
+        for (ShardRouting shardRouting : shardTable) {
+            if (!shardRouting.active()) {
+                continue;
+            }
+            DiscoveryNode node = state.nodes().get(shardRouting.currentNodeId());
+            if (node == null) {
+                continue;
+            }
+            TransportAddress address = node.address();
+            if (address instanceof InetSocketTransportAddress) {
+                String host = ((InetSocketTransportAddress) address).address().getHostName();
+                if (shardRouting.primary()) {
+                    hosts.add(0, host);
+                } else {
+                    hosts.add(host);
+                }
+            }
+        }
+        return hosts.toArray(new String[hosts.size()]);
+    }
+
     /**
      * Sets the configuration object, opens a connection to elasticsearch, and initiates the initial
      * search request.
@@ -88,163 +333,252 @@ public class ElasticSearchInputFormat implements Configurable, InputFormat<Text,
         this.objType = conf.get(ES_OBJECT_TYPE);
         this.requestSize = Integer.parseInt(conf.get(ES_REQUEST_SIZE));
         this.numSplits = Long.parseLong(conf.get(ES_NUM_SPLITS));
-        this.queryString = conf.get(ES_QUERY_STRING);
+        this.queryString = conf.get(ES_QUERY_STRING, MATCH_ALL_QUERY_STRING);
+        try {
+            this.filters = ElasticFilters.parse(conf.get(ES_QUERY_FILTERS));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid " + ES_QUERY_FILTERS, e);
+        }
+        this.splitMode = conf.get(ES_SPLIT_MODE, SPLIT_MODE_OFFSET);
+        this.splitsPerShard = conf.getInt(ES_SPLITS_PER_SHARD, 1);
 
         //
         // Need to ensure that this is set in the hadoop configuration so we can
         // instantiate a local client. The reason is that no files are in the
         // distributed cache when this is called.
         //
-        System.setProperty(ES_CONFIG, conf.get(ES_CONFIG));
-        System.setProperty(ES_PLUGINS, conf.get(ES_PLUGINS));
-
-        start_embedded_client();
+        if (!ElasticClientPool.usesTransport(conf)) {
+            System.setProperty(ES_CONFIG, conf.get(ES_CONFIG));
+            System.setProperty(ES_PLUGINS, conf.get(ES_PLUGINS));
+        }
 
-        initiate_search();
+        client = ElasticClientPool.acquire(conf);
+        try {
+            initiate_search();
+        } finally {
+            ElasticClientPool.release(client);
+        }
     }
 
     public Configuration getConf() {
         return conf;
     }
 
-    /** Starts an embedded elasticsearch client (ie. data = false) */
-    private void start_embedded_client() {
-        LOG.info("Starting embedded elasticsearch client ...");
-        this.node = NodeBuilder.nodeBuilder().client(true).node();
-        this.client = node.client();
-    }
-
     private void initiate_search() {
         SearchResponse response =
             client.prepareSearch(indexName).setTypes(objType).setSearchType(SearchType.COUNT)
-                .setQuery(QueryBuilders.queryString(queryString)).setSize(requestSize).execute()
+                .setQuery(buildQuery(queryString, null)).setSize(requestSize).execute()
                 .actionGet();
         this.numHits = response.hits().totalHits();
         if (numSplits > numHits) {
-            numSplits = numHits; // This could be bad
+            numSplits = Math.max(1, numHits); // This could be bad
         }
         this.numSplitRecords = (numHits / numSplits);
     }
 
-    protected class ElasticSearchRecordReader implements RecordReader<Text, Text> {
+    protected class ElasticSearchRecordReader implements RecordReader<Text, Writable> {
 
-        private Node node;
         private Client client;
 
         private String indexName;
         private String objType;
-        private Long numSplitRecords;
         private Integer requestSize;
-        private Text currentKey;
-        private Text currentValue;
-        private Integer recordsRead;
+        private long recordsRead;
         private Iterator<SearchHit> hitsItr = null;
 
+        private boolean useScroll;
+        private boolean useScan;
+        private TimeValue scrollKeepAlive;
+        private String scrollId = null;
 
+        private ElasticSearchSplit split;
         private String queryString;
         private Long from;
         private Long recsToRead;
+        private int shard;
+        private String[] fields;
+        private Text[] fieldKeys;
+        private final ElasticWritableCodec codec = new ElasticWritableCodec();
+
+        // Used for bookkeeping purposes
+        private Reporter reporter = Reporter.NULL;
+        private final LatencyHistogram searchLatency = new LatencyHistogram();
+        private long pageDocs = 0;
+        private long pageBytes = 0;
 
         public ElasticSearchRecordReader() {
         }
 
-        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
-            Configuration conf = context.getConfiguration();
+        public void initialize(InputSplit split, Configuration conf) throws IOException {
             this.indexName = conf.get(ES_INDEX_NAME);
             this.objType = conf.get(ES_OBJECT_TYPE);
+            this.requestSize = Integer.parseInt(conf.get(ES_REQUEST_SIZE));
+            this.useScroll = conf.getBoolean(ES_SCROLL, false);
+            this.fields = conf.getStrings(ES_FIELDS);
+            if (fields != null) {
+                fieldKeys = new Text[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    fieldKeys[i] = new Text(fields[i]);
+                }
+            }
+            this.scrollKeepAlive = TimeValue.parseTimeValue(
+                conf.get(ES_SCROLL_KEEPALIVE, DEFAULT_SCROLL_KEEPALIVE), null);
             LOG.info("Initializing elasticsearch record reader on index [" + indexName
                      + "] and object type [" + objType + "]");
 
-            //
-            // Fetches elasticsearch.yml and the plugins directory from the distributed cache
-            //
-            try {
-                String taskConfigPath = ElasticUtil.fetchFileFromCache(ES_CONFIG_NAME, conf);
-                LOG.info("Using [" + taskConfigPath + "] as es.config");
-                String taskPluginsPath = ElasticUtil.fetchArchiveFromCache(ES_PLUGINS_NAME, conf);
-                LOG.info("Using [" + taskPluginsPath + "] as es.plugins.dir");
-                System.setProperty(ES_CONFIG, taskConfigPath);
-                System.setProperty(ES_PLUGINS, taskPluginsPath + SLASH + ES_PLUGINS_NAME);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            this.split = (ElasticSearchSplit) split;
+            queryString = this.split.getQueryString();
+            from = this.split.getFrom();
+            recsToRead = this.split.getSize();
+            shard = this.split.getShard();
+
+            // A split holding a whole shard needs no ordering, so it can be streamed with a scan.
+            useScan = useScroll && shard != ElasticSearchSplit.NO_SHARD && from == 0
+                      && conf.getInt(ES_SPLITS_PER_SHARD, 1) == 1;
+            // A partitioned split is bounded by its own query and its size is only an estimate,
+            // so it is always scanned to exhaustion.
+            if (this.split.isPartitioned()) {
+                useScroll = true;
+                useScan = true;
             }
 
-            queryString = ((ElasticSearchSplit) split).getQueryString();
-            from = ((ElasticSearchSplit) split).getFrom();
-            recsToRead = ((ElasticSearchSplit) split).getSize();
-
             LOG.info("elasticsearch record reader: query [" + queryString + "], from [" + from
-                     + "], size [" + recsToRead + "]");
-            start_embedded_client();
+                     + "], size [" + recsToRead + "], shard [" + shard + "], scroll ["
+                     + useScroll + "], scan [" + useScan + "]");
+            client = ElasticClientPool.acquireInTask(conf);
             recordsRead = 0;
         }
 
-        /** Starts an embedded elasticsearch client (ie. data = false) */
-        private void start_embedded_client() {
-            LOG.info("Starting embedded elasticsearch client ...");
-            this.node = NodeBuilder.nodeBuilder().client(true).node();
-            this.client = node.client();
+        private SearchRequestBuilder prepareSearch() {
+            SearchRequestBuilder request = client.prepareSearch(indexName).setTypes(objType)
+                .setQuery(buildQuery(split));
+            if (split.getRouting() != null) {
+                request.setRouting(split.getRouting());
+            }
+            if (shard != ElasticSearchSplit.NO_SHARD) {
+                request.setPreference(SHARD_PREFERENCE + shard);
+            }
+            if (fields != null) {
+                request.addFields(fields);
+            }
+            return request;
         }
 
+        /** Runs the next search and records its latency. */
         private Iterator<SearchHit> fetchNextHits() {
-            SearchResponse response =
-                client.prepareSearch(indexName).setTypes(objType).setFrom(from.intValue())
-                    .setSize(recsToRead.intValue()).setQuery(QueryBuilders.queryString(queryString))
+            publishCounters();
+            long startTime = System.currentTimeMillis();
+            Iterator<SearchHit> hits = search();
+            long tookMillis = System.currentTimeMillis() - startTime;
+            searchLatency.record(tookMillis);
+            reporter.incrCounter(ElasticCounter.SEARCH_REQUESTS, 1);
+            reporter.incrCounter(ElasticCounter.SEARCH_TIME_MS, tookMillis);
+            return hits;
+        }
+
+        /** Reports the documents and bytes read since the last search, one batch per page. */
+        private void publishCounters() {
+            if (pageDocs > 0) {
+                reporter.incrCounter(ElasticCounter.DOCS_READ, pageDocs);
+                reporter.incrCounter(ElasticCounter.BYTES_READ, pageBytes);
+                pageDocs = 0;
+                pageBytes = 0;
+            }
+        }
+
+        /**
+         * Without <b>elasticsearch.scroll</b> the whole split is fetched in a single from/size
+         * request. With it, the first call opens a scroll cursor positioned at the split offset
+         * and every later call pulls the next <b>elasticsearch.request.size</b> hits, so only one
+         * page is ever held in memory. Whole-shard splits open the cursor with a scan, which
+         * skips scoring and sorting altogether.
+         */
+        private Iterator<SearchHit> search() {
+            SearchResponse response;
+            if (!useScroll) {
+                response = prepareSearch().setFrom(from.intValue())
+                    .setSize(recsToRead.intValue()).execute().actionGet();
+            } else if (scrollId == null && useScan) {
+                // The initial scan response carries no hits, only the cursor.
+                response = prepareSearch().setSearchType(SearchType.SCAN)
+                    .setScroll(scrollKeepAlive).setSize(requestSize).execute().actionGet();
+                response = client.prepareSearchScroll(response.scrollId())
+                    .setScroll(scrollKeepAlive).execute().actionGet();
+                scrollId = response.scrollId();
+            } else if (scrollId == null) {
+                response = prepareSearch().setScroll(scrollKeepAlive).setFrom(from.intValue())
+                    .setSize(Math.min(requestSize, recsToRead.intValue())).execute().actionGet();
+                scrollId = response.scrollId();
+            } else {
+                response = client.prepareSearchScroll(scrollId).setScroll(scrollKeepAlive)
                     .execute().actionGet();
+                scrollId = response.scrollId();
+            }
             return response.hits().iterator();
         }
 
-        public boolean next(Text key, Text val) throws IOException {
-            if (hitsItr != null) {
-                if (recordsRead < recsToRead) {
-                    if (hitsItr.hasNext()) {
-                        SearchHit hit = hitsItr.next();
-                        key.set(hit.id());
-                        val.set(hit.sourceAsString());
-                        recordsRead += 1;
-                        return true;
-                    }
+        public boolean next(Text key, Writable val) throws IOException {
+            if (recordsRead >= recsToRead && !split.isPartitioned()) {
+                return false;
+            }
+            if (hitsItr == null || (useScroll && !hitsItr.hasNext())) {
+                hitsItr = fetchNextHits();
+            }
+            if (hitsItr.hasNext()) {
+                SearchHit hit = hitsItr.next();
+                key.set(hit.id());
+                if (fields == null) {
+                    ((Text) val).set(hit.sourceAsString());
+                    pageBytes += ((Text) val).getLength();
                 } else {
-                    hitsItr = null;
-                }
-            } else {
-                if (recordsRead < recsToRead) {
-                    hitsItr = fetchNextHits();
-                    if (hitsItr.hasNext()) {
-                        SearchHit hit = hitsItr.next();
-                        key.set(hit.id());
-                        val.set(hit.sourceAsString());
-                        recordsRead += 1;
-                        return true;
-                    }
+                    readFields(hit, (MapWritable) val);
                 }
+                recordsRead += 1;
+                pageDocs += 1;
+                return true;
             }
             return false;
         }
 
+        /** Copies the requested fields of the hit into the map; missing fields map to null. */
+        private void readFields(SearchHit hit, MapWritable val) {
+            val.clear();
+            codec.reset();
+            for (int i = 0; i < fields.length; i++) {
+                SearchHitField field = hit.field(fields[i]);
+                Object value = null;
+                if (field != null) {
+                    value = (field.values().size() > 1) ? field.values() : field.value();
+                }
+                val.put(fieldKeys[i], codec.toWritable(value));
+            }
+        }
+
         public Text createKey() {
             return new Text();
         }
 
-        public Text createValue() {
-            return new Text();
+        public Writable createValue() {
+            return (fields == null) ? new Text() : new MapWritable();
         }
 
         public long getPos() throws IOException {
-            return 0;
+            return recordsRead;
         }
 
         public float getProgress() throws IOException {
-            return recordsRead;
+            if (recsToRead <= 0) {
+                return 1.0f;
+            }
+            return Math.min(1.0f, (float) recordsRead / recsToRead);
         }
 
         public void close() throws IOException {
-            LOG.info("Closing record reader");
-            client.close();
-            LOG.info("Client is closed");
-            if (node != null) {
-                node.close();
-            }
+            publishCounters();
+            LOG.info("Closing record reader after [" + recordsRead + "] records; search latency "
+                     + searchLatency);
+            reporter.setStatus("search latency " + searchLatency);
+            ElasticClientPool.release(client);
             LOG.info("Record reader closed.");
         }
 
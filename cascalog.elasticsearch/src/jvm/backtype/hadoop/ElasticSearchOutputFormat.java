@@ -5,78 +5,108 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.Progressable;
 import org.elasticsearch.ExceptionsHelper;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.client.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.client.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
-import org.elasticsearch.node.Node;
-import org.elasticsearch.node.NodeBuilder;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Hadoop OutputFormat for writing arbitrary MapWritables (essentially HashMaps) into Elasticsearch.
+ * Values that are already serialized json documents (Text or BytesWritable) are indexed as is.
  * Records are batched up and sent in a one-hop manner to the elastic search data nodes that will
- * index them.
+ * index them. Keys are ignored unless they are Text, in which case they route the document.
  */
-public class ElasticSearchOutputFormat implements OutputFormat<NullWritable, MapWritable>, Configurable {
+public class ElasticSearchOutputFormat implements OutputFormat<Writable, Writable>, Configurable {
 
     static Log LOG = LogFactory.getLog(ElasticSearchOutputFormat.class);
     private Configuration conf = null;
 
-    public RecordWriter<NullWritable, MapWritable> getRecordWriter(FileSystem fileSystem,
+    public RecordWriter<Writable, Writable> getRecordWriter(FileSystem fileSystem,
         JobConf jobConf, String s, Progressable progressable) throws IOException {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        ElasticSearchRecordWriter writer = new ElasticSearchRecordWriter(jobConf);
+        if (progressable instanceof Reporter) {
+            writer.reporter = (Reporter) progressable;
+        }
+        return writer;
     }
 
     public void checkOutputSpecs(FileSystem fileSystem, JobConf jobConf) throws IOException {
         //To change body of implemented methods use File | Settings | File Templates.
     }
 
-    protected class ElasticSearchRecordWriter implements RecordWriter<NullWritable, MapWritable> {
+    protected class ElasticSearchRecordWriter implements RecordWriter<Writable, Writable> {
 
-        private Node node;
         private Client client;
         private String indexName;
         private int bulkSize;
+        private long bulkBytes;
+        private long flushIntervalMillis;
         private int idField;
         private String idFieldName;
         private String objType;
         private String[] fieldNames;
 
+        private ElasticBulkPipeline pipeline;
+        private ElasticBulkSizer sizer;
+        private ScheduledExecutorService flusher;
+
         // Used for bookkeeping purposes
-        private AtomicLong totalBulkTime = new AtomicLong();
-        private AtomicLong totalBulkItems = new AtomicLong();
-        private Random randgen = new Random();
+        private long totalBulkItems = 0;
+        private long totalBytes = 0;
         private long runStartTime = System.currentTimeMillis();
+        private Reporter reporter = Reporter.NULL;
+        private final long[] published = new long[ElasticCounter.values().length];
+        private long currentBytes = 0;
+        private long lastFlushTime = System.currentTimeMillis();
+        private String routing = null;
+        private int currentShard = ElasticSearchSplit.NO_SHARD;
+        private int numShards = 0;
+        private IOException flusherFailure = null;
 
         // For hadoop configuration
-        private static final String ES_CONFIG_NAME = "elasticsearch.yml";
-        private static final String ES_PLUGINS_NAME = "plugins";
         private static final String ES_INDEX_NAME = "elasticsearch.index.name";
         private static final String ES_BULK_SIZE = "elasticsearch.bulk.size";
+        private static final String ES_BULK_CONCURRENT_REQUESTS =
+            "elasticsearch.bulk.concurrent.requests";
+        private static final String ES_BULK_QUEUE_SIZE = "elasticsearch.bulk.queue.size";
+        private static final String ES_BULK_RETRIES = "elasticsearch.bulk.retries";
+        private static final String ES_BULK_RETRY_BACKOFF = "elasticsearch.bulk.retry.backoff.ms";
+        private static final String ES_DEAD_LETTER_PATH = "elasticsearch.dead.letter.path";
+        private static final String ES_BULK_BYTES = "elasticsearch.bulk.bytes";
+        private static final String ES_BULK_FLUSH_INTERVAL = "elasticsearch.bulk.flush.interval.ms";
+        private static final String ES_BULK_ADAPTIVE = "elasticsearch.bulk.adaptive";
+        private static final String ES_BULK_ADAPTIVE_LATENCY =
+            "elasticsearch.bulk.adaptive.target.latency.ms";
+        private static final String ES_BULK_ADAPTIVE_MIN = "elasticsearch.bulk.adaptive.min.size";
+        private static final String ES_BULK_ADAPTIVE_MAX = "elasticsearch.bulk.adaptive.max.size";
         private static final String ES_ID_FIELD_NAME = "elasticsearch.id.field.name";
         private static final String ES_ID_FIELD = "elasticsearch.id.field";
         private static final String ES_OBJECT_TYPE = "elasticsearch.object.type";
-        private static final String ES_CONFIG = "es.config";
-        private static final String ES_PLUGINS = "es.path.plugins";
+        private static final String ES_INDEX_SHARDS = "elasticsearch.index.shards";
+        private static final String NUMBER_OF_SHARDS = "index.number_of_shards";
 
         // Other string constants
         private static final String COMMA = ",";
-        private static final String SLASH = "/";
         private static final String NO_ID_FIELD = "-1";
 
-        private volatile BulkRequestBuilder currentRequest;
+        private BulkRequestBuilder currentRequest;
 
         /**
          * Instantiates a new RecordWriter for Elasticsearch <p> The properties that <b>MUST</b> be
@@ -100,12 +130,31 @@ public class ElasticSearchOutputFormat implements OutputFormat<NullWritable, Map
          * names.</li> <li><b>elasticsearch.id.field</b> - When <b>elasticsearch.is_json</b> is
          * false, this is the numeric index of the field to use as the document id. If -1 is used
          * the document is assumed to have no id and one is assigned to it by elasticsearch.</li>
-         * </ul>
+         * </ul> <p> Bulk requests are sent asynchronously. <b>elasticsearch.bulk.concurrent.requests</b>
+         * (default 1) bounds the number of bulks in flight and <b>elasticsearch.bulk.queue.size</b>
+         * (default 1) the number of full bulks waiting behind them before write blocks. Zero
+         * concurrent requests sends every bulk synchronously. <p> Besides the action count, a bulk is
+         * flushed once its sources add up to <b>elasticsearch.bulk.bytes</b> or once
+         * <b>elasticsearch.bulk.flush.interval.ms</b> have passed since the last flush (both
+         * disabled when 0). With <b>elasticsearch.bulk.adaptive</b> set, <b>elasticsearch.bulk.size</b>
+         * is only the starting point: the action count then follows the observed bulk latency
+         * (<b>elasticsearch.bulk.adaptive.target.latency.ms</b>, default 1000) between
+         * <b>elasticsearch.bulk.adaptive.min.size</b> and <b>elasticsearch.bulk.adaptive.max.size</b>.
+         * <p> Rejected items and failed bulks are retried <b>elasticsearch.bulk.retries</b> times
+         * (default 3), backing off exponentially from <b>elasticsearch.bulk.retry.backoff.ms</b>
+         * (default 100). Documents that still can't be indexed are written under
+         * <b>elasticsearch.dead.letter.path</b> when it is set. <p> An index that does not exist
+         * yet is created with <b>elasticsearch.index.shards</b> primary shards, when set.
          */
         public ElasticSearchRecordWriter(TaskAttemptContext context) {
-            Configuration conf = context.getConfiguration();
+            this(context.getConfiguration());
+        }
+
+        public ElasticSearchRecordWriter(Configuration conf) {
             this.indexName = conf.get(ES_INDEX_NAME);
             this.bulkSize = Integer.parseInt(conf.get(ES_BULK_SIZE));
+            this.bulkBytes = conf.getLong(ES_BULK_BYTES, 0);
+            this.flushIntervalMillis = conf.getLong(ES_BULK_FLUSH_INTERVAL, 0);
             this.idFieldName = conf.get(ES_ID_FIELD_NAME);
             if (idFieldName.equals(NO_ID_FIELD)) {
                 LOG.info("Documents will be assigned ids by elasticsearch");
@@ -115,75 +164,186 @@ public class ElasticSearchOutputFormat implements OutputFormat<NullWritable, Map
             }
             this.objType = conf.get(ES_OBJECT_TYPE);
 
-            //
-            // Fetches elasticsearch.yml and the plugins directory from the distributed cache
-            //
-            try {
-                String taskConfigPath = ElasticUtil.fetchFileFromCache(ES_CONFIG_NAME, conf);
-                LOG.info("Using [" + taskConfigPath + "] as es.config");
-                String taskPluginsPath = ElasticUtil.fetchArchiveFromCache(ES_PLUGINS_NAME, conf);
-                LOG.info("Using [" + taskPluginsPath + "] as es.plugins.dir");
-                System.setProperty(ES_CONFIG, taskConfigPath);
-                System.setProperty(ES_PLUGINS, taskPluginsPath + SLASH + ES_PLUGINS_NAME);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            client = ElasticClientPool.acquireInTask(conf);
+            initialize_index(indexName, conf);
+            pipeline = new ElasticBulkPipeline(client, conf.getInt(ES_BULK_CONCURRENT_REQUESTS, 1),
+                conf.getInt(ES_BULK_QUEUE_SIZE, 1));
+            pipeline.setRetries(conf.getInt(ES_BULK_RETRIES, 3),
+                conf.getLong(ES_BULK_RETRY_BACKOFF, 100));
+            if (conf.get(ES_DEAD_LETTER_PATH) != null) {
+                pipeline.setDeadLetters(
+                    new ElasticDeadLetters(new Path(conf.get(ES_DEAD_LETTER_PATH)), conf));
+            }
+            if (conf.getBoolean(ES_BULK_ADAPTIVE, false)) {
+                sizer = new ElasticBulkSizer(bulkSize, conf.getInt(ES_BULK_ADAPTIVE_MIN,
+                    Math.max(1, bulkSize / 10)), conf.getInt(ES_BULK_ADAPTIVE_MAX, bulkSize * 10),
+                    conf.getLong(ES_BULK_ADAPTIVE_LATENCY, 1000));
+                pipeline.addListener(sizer);
             }
-
-            start_embedded_client();
-            initialize_index(indexName);
             currentRequest = client.prepareBulk();
+            if (flushIntervalMillis > 0) {
+                start_interval_flusher();
+            }
         }
 
         /**
          * Closes the connection to elasticsearch. Any documents remaining in the bulkRequest object
-         * are indexed.
+         * are indexed and every bulk request still in flight is waited for.
          */
         public void close(Reporter reporter) throws IOException {
-            if (currentRequest.numberOfActions() > 0) {
+            if (reporter != null) {
+                this.reporter = reporter;
+            }
+            try {
+                boolean flushed = false;
                 try {
-                    BulkResponse response = currentRequest.execute().actionGet();
-                } catch (Exception e) {
-                    LOG.warn("Bulk request failed: " + e.getMessage());
-                    throw new RuntimeException(e);
+                    stop_interval_flusher();
+                    synchronized (this) {
+                        rethrowFlusherFailure();
+                        if (currentRequest.numberOfActions() > 0) {
+                            flush();
+                        }
+                    }
+                    flushed = true;
+                } finally {
+                    if (flushed) {
+                        pipeline.close();
+                    } else {
+                        closePipelineAfterFailure();
+                    }
                 }
-            }
-            LOG.info("Closing record writer");
-            client.close();
-            LOG.info("Client is closed");
-            if (node != null) {
-                node.close();
+                markWritten();
+            } finally {
+                synchronized (this) {
+                    publishCounters();
+                }
+                long wallClock = Math.max(1, System.currentTimeMillis() - runStartTime);
+                LOG.info("Indexed [" + totalBulkItems + "] records, [" + totalBytes + "] bytes in ["
+                         + (pipeline.getTotalBulkTime() / 1000) + "s] of indexing and ["
+                         + (wallClock / 1000) + "s] of wall clock for ["
+                         + (float) (1000.0 * totalBulkItems) / wallClock + "rec/s], ["
+                         + pipeline.getTotalFailedItems() + "] failed, ["
+                         + pipeline.getTotalRetriedItems() + "] retried; bulk latency "
+                         + pipeline.getBulkLatency());
+                this.reporter.setStatus("bulk latency " + pipeline.getBulkLatency());
+                LOG.info("Closing record writer");
+                ElasticClientPool.release(client);
             }
             LOG.info("Record writer closed.");
         }
 
         /**
-         * Writes a single MapWritable record to the bulkRequest object. Once
-         * <b>elasticsearch.bulk.size</b> are accumulated the records are written to elasticsearch.
+         * Writes a single record to the bulkRequest object. Once <b>elasticsearch.bulk.size</b>
+         * are accumulated the records are written to elasticsearch. A Text key is the routing
+         * value of the record; the bulk is flushed whenever it would otherwise span two shards.
          */
-        public void write(NullWritable key, MapWritable fields) throws IOException {
+        public synchronized void write(Writable key, Writable value) throws IOException {
+            rethrowFlusherFailure();
+            routing = (key instanceof Text) ? key.toString() : null;
+            if (routing != null) {
+                routeTo(ElasticUtil.shardId(routing, numShards()));
+            }
+            if (value instanceof MapWritable) {
+                writeMap((MapWritable) value);
+            } else if (value instanceof Text) {
+                writeRaw(((Text) value).getBytes(), ((Text) value).getLength());
+            } else if (value instanceof BytesWritable) {
+                writeRaw(((BytesWritable) value).getBytes(), ((BytesWritable) value).getLength());
+            } else {
+                throw new IOException("Can't index values of type " + value.getClass());
+            }
+            processBulkIfNeeded();
+        }
+
+        /**
+         * Closes the pipeline and its dead-letter file once the final flush has failed, logging
+         * rather than throwing so the failure of the flush is the one reported.
+         */
+        private void closePipelineAfterFailure() {
+            try {
+                pipeline.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the bulk pipeline after a failed flush", e);
+            }
+        }
+
+        /** Leaves the last-write marker the ElasticTap reports as its modification time. */
+        private void markWritten() {
+            if (totalBulkItems == 0) {
+                return;
+            }
+            try {
+                ElasticUtil.markWritten(client, indexName);
+            } catch (Exception e) {
+                LOG.warn("Could not mark index [" + indexName + "] as written", e);
+            }
+        }
+
+        private void routeTo(int shard) throws IOException {
+            if (shard != currentShard && currentRequest.numberOfActions() > 0) {
+                flush();
+            }
+            currentShard = shard;
+        }
+
+        private int numShards() {
+            if (numShards == 0) {
+                numShards = ElasticUtil.numberOfShards(client, indexName);
+            }
+            return numShards;
+        }
+
+        private IndexRequest route(IndexRequest request) {
+            return (routing == null) ? request : request.routing(routing);
+        }
+
+        private void writeMap(MapWritable fields) throws IOException {
             XContentBuilder builder = XContentFactory.jsonBuilder();
             buildContent(builder, fields);
+            currentBytes += builder.unsafeBytesLength();
+            totalBytes += builder.unsafeBytesLength();
             if (idField == -1) {
                 // Document has no inherent id
-                currentRequest.add(Requests.indexRequest(indexName).type(objType).source(builder));
+                currentRequest.add(
+                    route(Requests.indexRequest(indexName).type(objType).source(builder)));
             } else {
                 try {
                     Text mapKey = new Text(idFieldName);
                     String record_id = fields.get(mapKey).toString();
-                    currentRequest.add(Requests.indexRequest(indexName).id(record_id).type(objType)
-                        .create(false).source(builder));
+                    currentRequest.add(route(Requests.indexRequest(indexName).id(record_id)
+                        .type(objType).create(false).source(builder)));
                 } catch (Exception e) {
                     LOG.warn("Encountered malformed record");
                 }
             }
-            processBulkIfNeeded();
+        }
+
+        /**
+         * Adds an already serialized json document to the bulk without materializing it. The id,
+         * if any, is picked out with a streaming parser that stops at the id field. The bytes are
+         * handed over as is, so the caller must not reuse the array.
+         */
+        private void writeRaw(byte[] source, int length) throws IOException {
+            IndexRequest request = Requests.indexRequest(indexName).type(objType)
+                .source(source, 0, length);
+            if (idField != -1) {
+                String record_id = ElasticUtil.extractField(source, 0, length, idFieldName);
+                if (record_id == null) {
+                    LOG.warn("Encountered malformed record");
+                    return;
+                }
+                request.id(record_id).create(false);
+            }
+            currentRequest.add(route(request));
+            currentBytes += length;
+            totalBytes += length;
         }
 
         /**
          * Recursively untangles the MapWritable and writes the fields into elasticsearch's
          * XContentBuilder builder.
          */
-        private void buildContent(XContentBuilder builder, Writable value) throws IOException {
+        void buildContent(XContentBuilder builder, Writable value) throws IOException {
             if (value instanceof Text) {
                 builder.value(((Text) value).toString());
             } else if (value instanceof LongWritable) {
@@ -205,6 +365,8 @@ public class ElasticSearchOutputFormat implements OutputFormat<NullWritable, Map
                     }
                 }
                 builder.endObject();
+            } else if (value instanceof NullWritable) {
+                builder.nullValue();
             } else if (value instanceof ArrayWritable) {
                 builder.startArray();
                 Writable[] arrayOfThings = ((ArrayWritable) value).get();
@@ -216,54 +378,126 @@ public class ElasticSearchOutputFormat implements OutputFormat<NullWritable, Map
         }
 
         /**
-         * Indexes content to elasticsearch when <b>elasticsearch.bulk.size</b> records have been
-         * accumulated.
+         * Hands content to the bulk pipeline when <b>elasticsearch.bulk.size</b> records or
+         * <b>elasticsearch.bulk.bytes</b> bytes have been accumulated.
          */
-        private void processBulkIfNeeded() {
-            totalBulkItems.incrementAndGet();
-            if (currentRequest.numberOfActions() >= bulkSize) {
-                try {
-                    long startTime = System.currentTimeMillis();
-                    BulkResponse response = currentRequest.execute().actionGet();
-                    totalBulkTime.addAndGet(System.currentTimeMillis() - startTime);
-                    if (randgen.nextDouble() < 0.1) {
-                        LOG.info("Indexed [" + totalBulkItems.get() + "] in ["
-                                 + (totalBulkTime.get() / 1000) + "s] of indexing" + "["
-                                 + ((System.currentTimeMillis() - runStartTime) / 1000)
-                                 + "s] of wall clock" + " for ["
-                                 + (float) (1000.0 * totalBulkItems.get()) / (
-                            System.currentTimeMillis() - runStartTime) + "rec/s]");
+        private void processBulkIfNeeded() throws IOException {
+            totalBulkItems++;
+            int actionLimit = (sizer == null) ? bulkSize : sizer.getBulkSize();
+            if (currentRequest.numberOfActions() >= actionLimit
+                || (bulkBytes > 0 && currentBytes >= bulkBytes)) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            BulkRequestBuilder request = currentRequest;
+            currentRequest = client.prepareBulk();
+            currentBytes = 0;
+            lastFlushTime = System.currentTimeMillis();
+            pipeline.submit(request);
+            publishCounters();
+        }
+
+        /**
+         * Pushes the counters gathered since the last call to the task's Reporter. The pipeline
+         * keeps its own totals from the sender threads, so only the deltas are reported here.
+         */
+        private void publishCounters() {
+            publish(ElasticCounter.DOCS_WRITTEN, totalBulkItems);
+            publish(ElasticCounter.BYTES_WRITTEN, totalBytes);
+            publish(ElasticCounter.BULK_REQUESTS, pipeline.getTotalBulkRequests());
+            publish(ElasticCounter.BULK_TIME_MS, pipeline.getTotalBulkTime());
+            publish(ElasticCounter.FAILED_ITEMS, pipeline.getTotalFailedItems());
+            publish(ElasticCounter.RETRIED_ITEMS, pipeline.getTotalRetriedItems());
+        }
+
+        private void publish(ElasticCounter counter, long total) {
+            long delta = total - published[counter.ordinal()];
+            if (delta != 0) {
+                reporter.incrCounter(counter, delta);
+                published[counter.ordinal()] = total;
+            }
+        }
+
+        /** Flushes bulks that have been sitting for longer than the flush interval. */
+        private synchronized void flushIfStale() throws IOException {
+            if (currentRequest.numberOfActions() > 0
+                && System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis) {
+                flush();
+            }
+        }
+
+        private void start_interval_flusher() {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "es-bulk-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1, flushIntervalMillis / 2);
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        flushIfStale();
+                    } catch (Exception e) {
+                        LOG.warn("Interval flush failed: " + e.getMessage());
+                        synchronized (ElasticSearchRecordWriter.this) {
+                            if (flusherFailure == null) {
+                                flusherFailure = (e instanceof IOException) ? (IOException) e
+                                    : new IOException("Interval flush failed", e);
+                            }
+                        }
+                        throw new RuntimeException(e);
                     }
-                } catch (Exception e) {
-                    LOG.warn("Bulk request failed: " + e.getMessage());
-                    throw new RuntimeException(e);
                 }
-                currentRequest = client.prepareBulk();
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Lets a flush the flusher is in the middle of finish, rather than interrupting it after
+         * its bulk has been taken out of currentRequest.
+         */
+        private void stop_interval_flusher() throws IOException {
+            if (flusher == null) {
+                return;
+            }
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the interval flusher", e);
+            }
+        }
+
+        /** Fails the task with the first error the interval flusher ran into. */
+        private void rethrowFlusherFailure() throws IOException {
+            if (flusherFailure != null) {
+                throw flusherFailure;
             }
         }
 
-        private void initialize_index(String indexName) {
+        private void initialize_index(String indexName, Configuration conf) {
             LOG.info("Initializing index");
             try {
-                client.admin().indices().prepareCreate(indexName).execute().actionGet();
+                CreateIndexRequestBuilder create =
+                    client.admin().indices().prepareCreate(indexName);
+                if (conf.get(ES_INDEX_SHARDS) != null) {
+                    create.setSettings(ImmutableSettings.settingsBuilder()
+                        .put(NUMBER_OF_SHARDS, conf.getInt(ES_INDEX_SHARDS, 0)));
+                }
+                create.execute().actionGet();
             } catch (Exception e) {
                 if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
                     LOG.warn("Index [" + indexName + "] already exists");
                 }
             }
         }
-
-        //
-        // Starts an embedded elasticsearch client (ie. data = false)
-        //
-        private void start_embedded_client() {
-            LOG.info("Starting embedded elasticsearch client ...");
-            this.node = NodeBuilder.nodeBuilder().client(true).node();
-            this.client = node.client();
-        }
     }
 
-    public RecordWriter<NullWritable, MapWritable> getRecordWriter(final TaskAttemptContext context)
+    public RecordWriter<Writable, Writable> getRecordWriter(final TaskAttemptContext context)
         throws IOException, InterruptedException {
         return new ElasticSearchRecordWriter(context);
     }
@@ -9,9 +9,18 @@ import java.io.IOException;
 
 public class ElasticSearchSplit implements InputSplit {
 
+    /** Marks a split that is not pinned to a single shard. */
+    public static final int NO_SHARD = -1;
+
     private String queryString;
     private long from;
     private long size;
+    private int shard = NO_SHARD;
+    private String[] locations = new String[]{};
+    private String rangeField = null;
+    private Long rangeFrom = null;
+    private Long rangeTo = null;
+    private String routing = null;
 
     public ElasticSearchSplit() {}
 
@@ -21,6 +30,39 @@ public class ElasticSearchSplit implements InputSplit {
         this.size = size;
     }
 
+    /**
+     * A split reading <code>size</code> hits from <code>from</code> within a single shard. The
+     * locations are the hosts holding a started copy of that shard.
+     */
+    public ElasticSearchSplit(String queryString, long from, long size, int shard,
+        String[] locations) {
+        this(queryString, from, size);
+        this.shard = shard;
+        this.locations = locations;
+    }
+
+    /**
+     * A split reading every hit whose <code>rangeField</code> lies in [rangeFrom, rangeTo). A null
+     * bound leaves the range open on that side, so no bound is ever sent that the field type
+     * cannot hold. The size is only the number of hits estimated at planning time.
+     */
+    public ElasticSearchSplit(String queryString, String rangeField, Long rangeFrom, Long rangeTo,
+        long size) {
+        this(queryString, 0, size);
+        this.rangeField = rangeField;
+        this.rangeFrom = rangeFrom;
+        this.rangeTo = rangeTo;
+    }
+
+    /**
+     * A split reading every hit stored under the given routing value. The size is only the number
+     * of hits estimated at planning time.
+     */
+    public ElasticSearchSplit(String queryString, String routing, long size) {
+        this(queryString, 0, size);
+        this.routing = routing;
+    }
+
     public String getQueryString() {
         return queryString;
     }
@@ -33,23 +75,88 @@ public class ElasticSearchSplit implements InputSplit {
         return size;
     }
 
+    public int getShard() {
+        return shard;
+    }
+
+    public String getRangeField() {
+        return rangeField;
+    }
+
+    /** The inclusive lower bound of the range, or null when the range is open at the bottom. */
+    public Long getRangeFrom() {
+        return rangeFrom;
+    }
+
+    /** The exclusive upper bound of the range, or null when the range is open at the top. */
+    public Long getRangeTo() {
+        return rangeTo;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    /**
+     * Whether the split is bounded by a range or routing value rather than by an offset, in which
+     * case it is read until its query is exhausted.
+     */
+    public boolean isPartitioned() {
+        return rangeField != null || routing != null;
+    }
+
     public String[] getLocations() throws IOException {
-        return new String[]{};
+        return locations;
     }
 
     public long getLength() throws IOException {
-        return 0;
+        return (shard == NO_SHARD && !isPartitioned()) ? 0 : size;
     }
 
     public void readFields(DataInput in) throws IOException {
         queryString = Text.readString(in);
         from = in.readLong();
         size = in.readLong();
+        shard = in.readInt();
+        locations = new String[in.readInt()];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = Text.readString(in);
+        }
+        rangeField = in.readBoolean() ? Text.readString(in) : null;
+        rangeFrom = readBound(in);
+        rangeTo = readBound(in);
+        routing = in.readBoolean() ? Text.readString(in) : null;
     }
 
     public void write(DataOutput out) throws IOException {
         Text.writeString(out, queryString);
         out.writeLong(from);
         out.writeLong(size);
+        out.writeInt(shard);
+        out.writeInt(locations.length);
+        for (String location : locations) {
+            Text.writeString(out, location);
+        }
+        out.writeBoolean(rangeField != null);
+        if (rangeField != null) {
+            Text.writeString(out, rangeField);
+        }
+        writeBound(out, rangeFrom);
+        writeBound(out, rangeTo);
+        out.writeBoolean(routing != null);
+        if (routing != null) {
+            Text.writeString(out, routing);
+        }
+    }
+
+    private static Long readBound(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeBound(DataOutput out, Long bound) throws IOException {
+        out.writeBoolean(bound != null);
+        if (bound != null) {
+            out.writeLong(bound);
+        }
     }
-}
\ No newline at end of file
+}
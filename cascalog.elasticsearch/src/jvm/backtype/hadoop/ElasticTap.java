@@ -1,6 +1,8 @@
 package backtype.hadoop;
 
 import cascading.flow.hadoop.HadoopUtil;
+import cascading.scheme.Scheme;
+import cascading.tap.SinkMode;
 import cascading.tap.Tap;
 import cascading.tap.TapException;
 import cascading.tap.hadoop.TapCollector;
@@ -9,10 +11,14 @@ import cascading.tuple.TupleEntryCollector;
 import cascading.tuple.TupleEntryIterator;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
+import org.elasticsearch.client.Client;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -23,29 +29,153 @@ import java.util.Map;
  * To change this template use File | Settings | File Templates.
  */
 public class ElasticTap extends Tap {
-    String dbDriver;
-    String dbUrl;
-    String username;
-    String pwd;
-    String tableName;
-    String pkColumn;
-    String[] columnNames;
-    int numChunks;
-
-    private String _accessKeyId;
-    private String _secretAccessKey;
-    private String _baseDomainName;
+    private String indexName;
+    private String objType;
+    private HashMap<String, String> properties;
 
     public static final String SCHEME = "es";
 
+    private static final String ES_INDEX_NAME = "elasticsearch.index.name";
+    private static final String ES_OBJECT_TYPE = "elasticsearch.object.type";
+    private static final String ES_BULK_LOAD_ALIAS = "elasticsearch.bulk.load.alias";
+    private static final String ES_INDEX_SHARDS = "elasticsearch.index.shards";
+    private static final String ES_CONFIG = "es.config";
+    private static final String ES_PLUGINS = "es.path.plugins";
+
+    /**
+     * A tap over the objects of one type in an index. The properties, eg.
+     * <b>elasticsearch.query.string</b> or <b>elasticsearch.query.filters</b>, are copied into the
+     * job configuration whenever the tap is used as a source or a sink, so the search request
+     * only ever returns the matching documents. <p> With <b>elasticsearch.bulk.load.alias</b> set,
+     * the tap picks the name of the index the bulk load builds when it is created, unless the
+     * properties already name one, so the flow can be followed by {@link #commitBulkLoad} or
+     * {@link #abortBulkLoad}. <p> With SinkMode.REPLACE the index, or every index behind the
+     * alias, is deleted before the flow writes to it; in bulk load mode only a leftover bulk load
+     * index by the same name ever is.
+     */
+    public ElasticTap(String indexName, String objType, Scheme scheme,
+        Map<String, String> properties, SinkMode sinkMode) {
+        super(scheme, sinkMode);
+        this.indexName = indexName;
+        this.objType = objType;
+        this.properties = new HashMap<String, String>(properties);
+        String alias = this.properties.get(ES_BULK_LOAD_ALIAS);
+        if (alias != null && !this.properties.containsKey(ES_INDEX_NAME)) {
+            this.properties.put(ES_INDEX_NAME, ElasticBulkLoadCommitter.stagingIndex(alias));
+        }
+    }
+
+    /** A tap that adds to the documents already in the index, as with SinkMode.UPDATE. */
+    public ElasticTap(String indexName, String objType, Scheme scheme,
+        Map<String, String> properties) {
+        this(indexName, objType, scheme, properties, SinkMode.UPDATE);
+    }
+
+    public ElasticTap(String indexName, String objType, Scheme scheme) {
+        this(indexName, objType, scheme, new HashMap<String, String>());
+    }
+
     private URI getURI() {
         try {
-            return new URI(SCHEME, "//" + _accessKeyId + "/" + _baseDomainName, null);
+            return new URI(SCHEME, "//" + indexName + "/" + objType, null);
         } catch (URISyntaxException exception) {
             throw new TapException("unable to create uri", exception);
         }
     }
 
+    private void configure(JobConf jobConf) {
+        jobConf.set(ES_INDEX_NAME, indexName);
+        jobConf.set(ES_OBJECT_TYPE, objType);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            jobConf.set(property.getKey(), property.getValue());
+        }
+    }
+
+    /**
+     * A copy of the job configuration with the tap's index, type and properties set, for the
+     * calls the flow planner makes on the tap with the configuration of the whole flow.
+     */
+    private JobConf configured(JobConf jobConf) {
+        JobConf copy = new JobConf(jobConf);
+        configure(copy);
+        return copy;
+    }
+
+    /**
+     * Acquires a pooled client for the cluster the tap points at, given a configuration from
+     * {@link #configured}. Outside a task the embedded client node is configured from es.config
+     * and es.path.plugins as set in the job.
+     */
+    private Client acquireClient(JobConf jobConf) {
+        if (!ElasticClientPool.usesTransport(jobConf)) {
+            for (String property : new String[]{ES_CONFIG, ES_PLUGINS}) {
+                if (jobConf.get(property) != null) {
+                    System.setProperty(property, jobConf.get(property));
+                }
+            }
+        }
+        return ElasticClientPool.acquire(jobConf);
+    }
+
+    /**
+     * The number of primary shards of the index the tap writes to, as needed to group documents
+     * by shard. That is the index the bulk load builds in bulk load mode, and the index the alias
+     * points to when the tap is named after an alias. An index that does not exist yet will be
+     * created by the record writer with <b>elasticsearch.index.shards</b> shards.
+     */
+    public int getNumShards(JobConf jobConf) {
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            if (jobConf.get(ES_BULK_LOAD_ALIAS) != null) {
+                return ElasticBulkLoadCommitter.numberOfShards(jobConf);
+            }
+            String target = jobConf.get(ES_INDEX_NAME);
+            List<String> indices = ElasticUtil.concreteIndices(client, target);
+            if (indices.isEmpty()) {
+                return jobConf.getInt(ES_INDEX_SHARDS, ElasticUtil.DEFAULT_NUMBER_OF_SHARDS);
+            } else if (indices.size() > 1) {
+                throw new TapException(
+                    "alias [" + target + "] points to more than one index: " + indices);
+            }
+            return ElasticUtil.numberOfShards(client, indices.get(0));
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    /** Moves the bulk load alias onto the index the flow built, see ElasticBulkLoadCommitter. */
+    public void commitBulkLoad(JobConf jobConf) {
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            ElasticBulkLoadCommitter.commit(client, jobConf);
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    /** Deletes the index a failed bulk load built, leaving the alias where it was. */
+    public void abortBulkLoad(JobConf jobConf) {
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            ElasticBulkLoadCommitter.abort(client, jobConf);
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    @Override public void sourceInit(JobConf jobConf) throws IOException {
+        configure(jobConf);
+        super.sourceInit(jobConf);
+    }
+
+    @Override public void sinkInit(JobConf jobConf) throws IOException {
+        configure(jobConf);
+        super.sinkInit(jobConf);
+    }
+
     @Override public Path getPath() {
         return new Path(getURI().toString());
     }
@@ -68,15 +198,77 @@ public class ElasticTap extends Tap {
         return true;
     }
 
+    /**
+     * Deletes the index, or every index the alias points to. In bulk load mode the live indices
+     * behind the alias are left alone; only the index the bulk load builds is deleted.
+     */
     @Override public boolean deletePath(JobConf jobConf) throws IOException {
-        return false;
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            List<String> indices;
+            if (jobConf.get(ES_BULK_LOAD_ALIAS) != null) {
+                String staging = jobConf.get(ES_INDEX_NAME);
+                indices = ElasticUtil.concreteIndices(client, staging);
+                indices.retainAll(Collections.singleton(staging));
+            } else {
+                indices = ElasticUtil.concreteIndices(client, indexName);
+            }
+            for (String index : indices) {
+                client.admin().indices().prepareDelete(index).execute().actionGet();
+            }
+            return !indices.isEmpty();
+        } finally {
+            ElasticClientPool.release(client);
+        }
     }
 
+    /** True when the index, or an alias by its name, exists. */
     @Override public boolean pathExists(JobConf jobConf) throws IOException {
-        return true;
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            return !ElasticUtil.concreteIndices(client, indexName).isEmpty();
+        } finally {
+            ElasticClientPool.release(client);
+        }
     }
 
+    /**
+     * The latest last-write time the record writer left in the settings of the index or the
+     * indices behind the alias. Indices written by other means carry none, so they are always
+     * considered modified just now.
+     */
     @Override public long getPathModified(JobConf jobConf) throws IOException {
-        return System.currentTimeMillis();
+        jobConf = configured(jobConf);
+        Client client = acquireClient(jobConf);
+        try {
+            long modified = -1;
+            for (String index : ElasticUtil.concreteIndices(client, indexName)) {
+                long written = ElasticUtil.lastWritten(client, index);
+                if (written == -1) {
+                    return System.currentTimeMillis();
+                }
+                modified = Math.max(modified, written);
+            }
+            return (modified == -1) ? System.currentTimeMillis() : modified;
+        } finally {
+            ElasticClientPool.release(client);
+        }
+    }
+
+    @Override public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof ElasticTap) || !super.equals(object)) {
+            return false;
+        }
+        ElasticTap tap = (ElasticTap) object;
+        return getPath().equals(tap.getPath()) && properties.equals(tap.properties);
+    }
+
+    @Override public int hashCode() {
+        return 31 * super.hashCode() + getPath().hashCode();
     }
 }
@@ -13,6 +13,16 @@ import org.apache.hadoop.filecache.DistributedCache;
 
 
 import org.apache.hadoop.io.*;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,9 +34,18 @@ import java.util.Map;
  */
 
 public class ElasticUtil {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /** The number of shards elasticsearch gives an index unless told otherwise. */
+    public static final int DEFAULT_NUMBER_OF_SHARDS = 5;
+
+    // The last-write marker, an index setting so searches of the index never see it
+    private static final String LAST_WRITTEN = "index.cascalog.last_written";
+
     /**
      Recursively converts an arbitrary object into the appropriate writable. Please enlighten me if there is an existing
-     method for doing this.
+     method for doing this. Allocates fresh writables on every call; see ElasticWritableCodec for a recycling version.
      */
     public static Writable toWritable(Object thing) {
         if (thing instanceof String) {
@@ -48,18 +67,136 @@ public class ElasticUtil {
             }
             return result;
         } else if (thing instanceof List) {
-            if (((List)thing).size() > 0) {
-                Object first = ((List)thing).get(0);
-                Writable[] listOfThings = new Writable[((List)thing).size()];
-                for (int i = 0; i < listOfThings.length; i++) {
-                    listOfThings[i] = toWritable(((List)thing).get(i));
+            Writable[] listOfThings = new Writable[((List)thing).size()];
+            Class<? extends Writable> valueClass = null;
+            for (int i = 0; i < listOfThings.length; i++) {
+                listOfThings[i] = toWritable(((List)thing).get(i));
+                if (valueClass == null) {
+                    valueClass = listOfThings[i].getClass();
+                } else if (valueClass != listOfThings[i].getClass()) {
+                    valueClass = Writable.class; // mixed types
                 }
-                return new ArrayWritable(toWritable(first).getClass(), listOfThings);
             }
+            return new ArrayWritable(valueClass == null ? Writable.class : valueClass, listOfThings);
         }
         return NullWritable.get();
     }
 
+    /**
+     The inverse of toWritable: turns a writable back into plain java strings, numbers, booleans,
+     lists and maps. NullWritable and null become null.
+     */
+    public static Object fromWritable(Writable thing) {
+        if (thing instanceof Text) {
+            return thing.toString();
+        } else if (thing instanceof LongWritable) {
+            return ((LongWritable) thing).get();
+        } else if (thing instanceof IntWritable) {
+            return ((IntWritable) thing).get();
+        } else if (thing instanceof DoubleWritable) {
+            return ((DoubleWritable) thing).get();
+        } else if (thing instanceof FloatWritable) {
+            return ((FloatWritable) thing).get();
+        } else if (thing instanceof BooleanWritable) {
+            return ((BooleanWritable) thing).get();
+        } else if (thing instanceof MapWritable) {
+            Map<String, Object> result = new HashMap<String, Object>();
+            for (Map.Entry<Writable, Writable> entry : ((MapWritable) thing).entrySet()) {
+                result.put(entry.getKey().toString(), fromWritable(entry.getValue()));
+            }
+            return result;
+        } else if (thing instanceof ArrayWritable) {
+            Writable[] things = ((ArrayWritable) thing).get();
+            List<Object> result = new ArrayList<Object>(things.length);
+            for (Writable element : things) {
+                result.add(fromWritable(element));
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     Returns the text of the top level field with the given name in a serialized json object, or
+     null when the object has no such scalar field. Parsing stops as soon as the field is found and
+     nested values of other fields are skipped without being materialized.
+     */
+    public static String extractField(byte[] json, int offset, int length, String fieldName)
+        throws IOException {
+        JsonParser parser = JSON_FACTORY.createJsonParser(json, offset, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals(fieldName)) {
+                    return token.isScalarValue() && token != JsonToken.VALUE_NULL
+                        ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     Returns the shard elasticsearch routes a document with the given routing value (its id,
+     unless routed explicitly) to, using the same djb hash as the default operation routing.
+     */
+    public static int shardId(String routing, int numShards) {
+        return Math.abs(DjbHashFunction.DJB_HASH(routing) % numShards);
+    }
+
+    /**
+     Returns the number of primary shards of the index.
+     */
+    public static int numberOfShards(Client client, String indexName) {
+        IndexMetaData metaData = client.admin().cluster().prepareState().setFilterIndices(indexName)
+            .execute().actionGet().state().metaData().index(indexName);
+        if (metaData == null) {
+            throw new IllegalStateException("No metadata found for index [" + indexName + "]");
+        }
+        return metaData.numberOfShards();
+    }
+
+    /**
+     Returns the indices the name refers to: the index itself, or every index it is an alias of.
+     The list is empty when there is no such index or alias.
+     */
+    public static List<String> concreteIndices(Client client, String name) {
+        List<String> indices = new ArrayList<String>();
+        for (IndexMetaData index : client.admin().cluster().prepareState().execute().actionGet()
+            .state().metaData()) {
+            if (index.index().equals(name) || index.aliases().containsKey(name)) {
+                indices.add(index.index());
+            }
+        }
+        return indices;
+    }
+
+    /**
+     Records the current time as the moment the index was last written to. The time is kept in
+     the index settings, so it never shows up among the documents of the index.
+     */
+    public static void markWritten(Client client, String indexName) {
+        client.admin().indices().prepareUpdateSettings(indexName).setSettings(
+            ImmutableSettings.settingsBuilder().put(LAST_WRITTEN, System.currentTimeMillis()))
+            .execute().actionGet();
+    }
+
+    /**
+     Returns when the index was last marked as written to, or -1 if it never was.
+     */
+    public static long lastWritten(Client client, String indexName) {
+        IndexMetaData metaData = client.admin().cluster().prepareState().setFilterIndices(indexName)
+            .execute().actionGet().state().metaData().index(indexName);
+        return (metaData == null) ? -1 : metaData.settings().getAsLong(LAST_WRITTEN, -1L);
+    }
+
         /**
        Upload a local file to the cluster
      */
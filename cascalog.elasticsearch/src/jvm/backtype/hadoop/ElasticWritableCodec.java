@@ -0,0 +1,149 @@
+package backtype.hadoop;
+
+import org.apache.hadoop.io.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts parsed json (maps, lists, strings, numbers and booleans) into Writables like
+ * {@link ElasticUtil#toWritable}, but recycles the Writable instances from one record to the
+ * next and interns field name keys, so a task converting millions of documents allocates next to
+ * nothing. Call {@link #reset} before converting each record: the Writables handed out for the
+ * previous record are reused from then on, so they must have been consumed by then. One codec
+ * per task; instances are not thread safe. <p> Lists become ArrayWritables of their elements'
+ * common class, or of Writable when elements differ in type or the list is empty. Booleans map to
+ * one true and one false instance per codec.
+ */
+public class ElasticWritableCodec {
+
+    /** Field names beyond this many are converted without being interned. */
+    private static final int MAX_INTERNED_KEYS = 10000;
+
+    private final Map<String, Text> keys = new HashMap<String, Text>();
+
+    private final Recycler<Text> texts = new Recycler<Text>() {
+        Text create() {
+            return new Text();
+        }
+    };
+    private final Recycler<LongWritable> longs = new Recycler<LongWritable>() {
+        LongWritable create() {
+            return new LongWritable();
+        }
+    };
+    private final Recycler<IntWritable> ints = new Recycler<IntWritable>() {
+        IntWritable create() {
+            return new IntWritable();
+        }
+    };
+    private final Recycler<DoubleWritable> doubles = new Recycler<DoubleWritable>() {
+        DoubleWritable create() {
+            return new DoubleWritable();
+        }
+    };
+    private final Recycler<FloatWritable> floats = new Recycler<FloatWritable>() {
+        FloatWritable create() {
+            return new FloatWritable();
+        }
+    };
+    private final Recycler<MapWritable> maps = new Recycler<MapWritable>() {
+        MapWritable create() {
+            return new MapWritable();
+        }
+    };
+
+    // Per codec rather than static, so a consumer that sets one can't flip the booleans of
+    // every other task in the JVM.
+    private final BooleanWritable TRUE = new BooleanWritable(true);
+    private final BooleanWritable FALSE = new BooleanWritable(false);
+
+    /** Makes every Writable handed out so far available for reuse. */
+    public void reset() {
+        texts.reset();
+        longs.reset();
+        ints.reset();
+        doubles.reset();
+        floats.reset();
+        maps.reset();
+    }
+
+    public Writable toWritable(Object thing) {
+        if (thing instanceof String) {
+            Text text = texts.next();
+            text.set((String) thing);
+            return text;
+        } else if (thing instanceof Long) {
+            LongWritable writable = longs.next();
+            writable.set((Long) thing);
+            return writable;
+        } else if (thing instanceof Integer) {
+            IntWritable writable = ints.next();
+            writable.set((Integer) thing);
+            return writable;
+        } else if (thing instanceof Double) {
+            DoubleWritable writable = doubles.next();
+            writable.set((Double) thing);
+            return writable;
+        } else if (thing instanceof Float) {
+            FloatWritable writable = floats.next();
+            writable.set((Float) thing);
+            return writable;
+        } else if (thing instanceof Boolean) {
+            return ((Boolean) thing) ? TRUE : FALSE;
+        } else if (thing instanceof Map) {
+            MapWritable result = maps.next();
+            result.clear();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) thing).entrySet()) {
+                result.put(key(entry.getKey().toString()), toWritable(entry.getValue()));
+            }
+            return result;
+        } else if (thing instanceof List) {
+            List<?> list = (List<?>) thing;
+            Writable[] things = new Writable[list.size()];
+            Class<? extends Writable> valueClass = null;
+            for (int i = 0; i < things.length; i++) {
+                things[i] = toWritable(list.get(i));
+                if (valueClass == null) {
+                    valueClass = things[i].getClass();
+                } else if (valueClass != things[i].getClass()) {
+                    valueClass = Writable.class;
+                }
+            }
+            return new ArrayWritable(valueClass == null ? Writable.class : valueClass, things);
+        }
+        return NullWritable.get();
+    }
+
+    private Text key(String name) {
+        Text key = keys.get(name);
+        if (key == null) {
+            key = new Text(name);
+            if (keys.size() < MAX_INTERNED_KEYS) {
+                keys.put(name, key);
+            }
+        }
+        return key;
+    }
+
+    /** Hands out pooled instances in order, growing the pool as needed, until reset. */
+    private abstract static class Recycler<T> {
+        private final List<T> pool = new ArrayList<T>();
+        private int used = 0;
+
+        abstract T create();
+
+        T next() {
+            if (used == pool.size()) {
+                pool.add(create());
+            }
+            return pool.get(used++);
+        }
+
+        void reset() {
+            used = 0;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package backtype.hadoop;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two millisecond buckets. Percentiles are reported as
+ * the upper bound of the bucket they fall in, which is precise enough to tell a 50ms bulk from a
+ * 2s one without keeping every sample.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        counts.incrementAndGet(bucket);
+        total.incrementAndGet();
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+            // retry
+        }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    /** Upper bound in milliseconds of the latency below which the given fraction of samples lie. */
+    public long percentile(double fraction) {
+        long samples = total.get();
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * samples);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(max.get(), (bucket == 0) ? 0 : (1L << bucket) - 1);
+            }
+        }
+        return max.get();
+    }
+
+    public String toString() {
+        return "n=" + count() + " p50=" + percentile(0.5) + "ms p90=" + percentile(0.9)
+               + "ms p99=" + percentile(0.99) + "ms max=" + max.get() + "ms";
+    }
+}
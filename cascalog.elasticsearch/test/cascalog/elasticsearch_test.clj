@@ -1,3 +1,216 @@
 (ns cascalog.elasticsearch-test
   (:use cascalog.elasticsearch
-        [midje sweet cascalog]))
+        cascalog.api
+        [midje sweet cascalog])
+  (:require [clojure.java.io :as io])
+  (:import [backtype.hadoop ElasticUtil ElasticWritableCodec LatencyHistogram
+            ElasticFilters ElasticSearchSplit]
+           [java.io File]
+           [org.apache.hadoop.io ArrayWritable BooleanWritable Writable
+            DataInputBuffer DataOutputBuffer]
+           [org.codehaus.jackson.map ObjectMapper]
+           [org.elasticsearch.common.xcontent ToXContent XContentFactory]
+           [org.elasticsearch.node NodeBuilder]))
+
+(fact "Filter clauses are encoded as elasticsearch.query.filters json."
+  (filters->json [[:term :user "sritchie"]
+                  [:range :age {:gte 18}]
+                  [:exists :email]])
+  => "[{\"term\":{\"user\":\"sritchie\"}},{\"range\":{\"age\":{\"gte\":18}}},{\"exists\":\"email\"}]")
+
+(defn- parse-filters
+  "The filter built from the clauses, as parsed json."
+  [clauses]
+  (when-let [filter (ElasticFilters/parse (filters->json clauses))]
+    (let [builder (XContentFactory/jsonBuilder)]
+      (.toXContent filter builder ToXContent/EMPTY_PARAMS)
+      (into {} (.readValue (ObjectMapper.) (.string builder) java.util.Map)))))
+
+(fact "Filter clauses become elasticsearch filters."
+  (parse-filters [[:term :user "sritchie"]])
+  => {"term" {"user" "sritchie"}}
+  (parse-filters [[:exists :email]]) => {"exists" {"field" "email"}}
+  (parse-filters [[:missing :deleted]]) => {"missing" {"field" "deleted"}}
+  (get-in (parse-filters [[:range :age {:gte 18 :lt 65}]]) ["range" "age"])
+  => (contains {"from" 18 "to" 65 "include_lower" true "include_upper" false})
+  (keys (parse-filters [[:term :user "sritchie"] [:exists :email]]))
+  => ["and"]
+  (ElasticFilters/parse "[]") => nil
+  (ElasticFilters/parse nil) => nil
+  (ElasticFilters/parse "[{\"fuzzy\": {\"user\": \"sam\"}}]")
+  => (throws IllegalArgumentException)
+  (ElasticFilters/parse "[{\"range\": {\"age\": {\"near\": 3}}}]")
+  => (throws IllegalArgumentException))
+
+(defn- round-trip [^ElasticSearchSplit split]
+  (let [out (DataOutputBuffer.)
+        in (DataInputBuffer.)
+        copy (ElasticSearchSplit.)]
+    (.write split out)
+    (.reset in (.getData out) (.getLength out))
+    (.readFields copy in)
+    copy))
+
+(defn- split-state [^ElasticSearchSplit split]
+  {:query (.getQueryString split)
+   :from (.getFrom split)
+   :size (.getSize split)
+   :shard (.getShard split)
+   :locations (vec (.getLocations split))
+   :range [(.getRangeField split) (.getRangeFrom split) (.getRangeTo split)]
+   :routing (.getRouting split)
+   :partitioned? (.isPartitioned split)
+   :length (.getLength split)})
+
+(tabular
+ (fact "Splits survive serialization in every mode."
+   (split-state (round-trip ?split)) => (split-state ?split))
+ ?split
+ (ElasticSearchSplit. "*:*" 100 50)
+ (ElasticSearchSplit. "*:*" 0 50 3 (into-array String ["node-1" "node-2"]))
+ (ElasticSearchSplit. "user:sam" "age" 18 nil 1000)
+ (ElasticSearchSplit. "user:sam" "age" nil 65 1000)
+ (ElasticSearchSplit. "*:*" "age" nil nil 1000)
+ (ElasticSearchSplit. "*:*" "customer-7" 20))
+
+(fact "Range and routing splits are partitioned and report their size."
+  (let [range-split (round-trip (ElasticSearchSplit. "*:*" "age" 18 65 1000))
+        routing-split (round-trip (ElasticSearchSplit. "*:*" "customer-7" 20))]
+    (.isPartitioned range-split) => true
+    (.getRangeField range-split) => "age"
+    [(.getRangeFrom range-split) (.getRangeTo range-split)] => [18 65]
+    (.getLength range-split) => 1000
+    (.getRouting routing-split) => "customer-7"
+    (.getRangeField routing-split) => nil
+    (.getLength routing-split) => 20
+    (.isPartitioned (round-trip (ElasticSearchSplit. "*:*" 0 50))) => false))
+
+(fact "Open range bounds come back as nil rather than as extreme values."
+  (let [split (round-trip (ElasticSearchSplit. "*:*" "age" nil 65 1000))]
+    [(.getRangeFrom split) (.getRangeTo split)] => [nil 65]
+    (.getRangeTo (round-trip (ElasticSearchSplit. "*:*" "age" 18 nil 1000)))
+    => nil))
+
+(def sample-doc
+  {"id" "doc-1" "count" 42 "big" 12345678901 "score" 0.5 "active" true
+   "tags" ["a" "b"] "mixed" ["a" 1] "empty" []
+   "location" {"lat" 37.5 "lon" -122.5}})
+
+(fact "The codec converts documents like ElasticUtil/toWritable."
+  (let [codec (ElasticWritableCodec.)]
+    (.reset codec)
+    (ElasticUtil/fromWritable (.toWritable codec sample-doc))
+    => (ElasticUtil/fromWritable (ElasticUtil/toWritable sample-doc))
+    (ElasticUtil/fromWritable (.toWritable codec sample-doc)) => sample-doc))
+
+(fact "Lists keep the common class of their elements."
+  (let [codec (ElasticWritableCodec.)]
+    (.getValueClass ^ArrayWritable (.toWritable codec ["a" "b"]))
+    => org.apache.hadoop.io.Text
+    (.getValueClass ^ArrayWritable (.toWritable codec ["a" 1])) => Writable
+    (.getValueClass ^ArrayWritable (.toWritable codec [])) => Writable))
+
+(fact "Recycled writables are overwritten by the next record."
+  (let [codec (ElasticWritableCodec.)
+        _ (.reset codec)
+        first-doc (.toWritable codec {"id" "doc-1"})
+        _ (.reset codec)
+        second-doc (.toWritable codec {"id" "doc-2"})]
+    (identical? first-doc second-doc) => true
+    (ElasticUtil/fromWritable second-doc) => {"id" "doc-2"}))
+
+(fact "Boolean writables are shared within a codec, not between codecs."
+  (let [codec (ElasticWritableCodec.)
+        other (ElasticWritableCodec.)
+        yes (.toWritable codec true)]
+    (identical? yes (.toWritable codec true)) => true
+    (.get ^BooleanWritable (.toWritable codec false)) => false
+    (.set ^BooleanWritable yes false)
+    (.get ^BooleanWritable (.toWritable other true)) => true))
+
+(fact "Latency percentiles are the upper bound of their power of two bucket."
+  (let [histogram (LatencyHistogram.)]
+    (.percentile histogram 0.5) => 0
+    (doseq [millis [0 1 3 100]]
+      (.record histogram millis))
+    (.count histogram) => 4
+    (.percentile histogram 0.25) => 0
+    (.percentile histogram 0.5) => 1
+    (.percentile histogram 0.75) => 3
+    (.percentile histogram 0.99) => 100
+    (.percentile histogram 1.0) => 100))
+
+;; An in-process, single node cluster on the local transport. The
+;; client pool joins it through the elasticsearch.yml written here.
+
+(defn- delete-all [^File f]
+  (doseq [child (.listFiles f)]
+    (delete-all child))
+  (.delete f))
+
+(defn- start-local-node [^File home]
+  (let [config (io/file home "elasticsearch.yml")
+        plugins (io/file home "plugins")]
+    (.mkdirs plugins)
+    (spit config (str "cluster.name: cascalog-test\n"
+                      "node.local: true\n"
+                      "gateway.type: none\n"
+                      "path.data: " (io/file home "data") "\n"
+                      "index.number_of_shards: 1\n"
+                      "index.number_of_replicas: 0\n"))
+    (System/setProperty "es.config" (str config))
+    (System/setProperty "es.path.plugins" (str plugins))
+    (let [node (.node (NodeBuilder/nodeBuilder))]
+      (-> node .client .admin .cluster .prepareHealth
+          .setWaitForYellowStatus .execute .actionGet)
+      node)))
+
+(defmacro with-local-node [[client-sym] & body]
+  `(let [home# (doto (File/createTempFile "es-test" "") (.delete))
+         node# (start-local-node home#)
+         ~client-sym (.client node#)]
+     (try ~@body
+          (finally (.close node#)
+                   (delete-all home#)))))
+
+(defn- index-settings [client index]
+  (-> client .admin .cluster .prepareState .execute .actionGet
+      .state .metaData (.index index) .settings))
+
+(def sink-properties
+  {"elasticsearch.bulk.size" 10
+   "elasticsearch.id.field.name" "id"
+   "elasticsearch.bulk.load.refresh.interval" "2s"
+   "elasticsearch.bulk.load.replicas" 1
+   "elasticsearch.bulk.load.delete.previous" true})
+
+(defn- docs [& ids]
+  (<- [?json]
+      ((vec (for [id ids] [(str "{\"id\":\"" id "\"}")])) ?json)))
+
+(defmapop explode [x]
+  (throw (RuntimeException. "boom")))
+
+(fact "bulk-load! moves the alias to the new index and restores its settings."
+  (with-local-node [client]
+    (bulk-load! "people" "person" (docs 1 2) :properties sink-properties)
+    (let [[first-index] (ElasticUtil/concreteIndices client "people")]
+      (bulk-load! "people" "person" (docs 3) :properties sink-properties)
+      (let [[index :as indices] (ElasticUtil/concreteIndices client "people")
+            settings (index-settings client index)]
+        indices => (just [#"people_\d+"])
+        index =not=> first-index
+        (.get settings "index.refresh_interval") => "2s"
+        (.get settings "index.number_of_replicas") => "1"
+        (ElasticUtil/concreteIndices client first-index) => empty?))))
+
+(fact "A failed bulk-load! deletes its index and leaves the alias alone."
+  (with-local-node [client]
+    (bulk-load! "people" "person" (docs 1) :properties sink-properties)
+    (let [before (ElasticUtil/concreteIndices client "people")]
+      (bulk-load! "people" "person"
+                  (<- [?out] ((docs 2) ?json) (explode ?json :> ?out))
+                  :properties sink-properties) => (throws Exception)
+      (ElasticUtil/concreteIndices client "people") => before
+      (-> client .admin .cluster .prepareState .execute .actionGet
+          .state .metaData .indices .keySet set) => (set before))))
@@ -2,11 +2,20 @@
   (:use cascalog.api
         [cascalog.elephantdb impl conf])
   (:require [cascalog.workflow :as w]
+            [clojure.java.io :as io]
             [elephantdb.common.config :as c])
-  (:import [cascalog.elephantdb ClojureIndexer]
+  (:import [cascalog.elephantdb ClojureIndexer KeyValIndexer
+            ClojureBatchIndexer KeyValBatchIndexer
+            OverwriteIndexer LongSumIndexer SinkElephantDBTap
+            UpdateElephantDBTap]
            [elephantdb Utils]
            [elephantdb.cascading ElephantDBTap]
-           [org.apache.hadoop.conf Configuration]))
+           [elephantdb.document KeyValDocument]
+           [elephantdb.persistence KeyValPersistence]
+           [elephantdb.store DomainStore]
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs FileSystem Path]
+           [java.io PushbackReader]))
 
 (defn mk-indexer
   "Accepts a var OR a vector of a var and arguments. If this occurs,
@@ -29,6 +38,15 @@
   [updater-spec]
   (ClojureIndexer. (w/fn-spec updater-spec)))
 
+(defn overwrite-kv
+  "kv-indexer function that replaces the stored value of the key."
+  [^KeyValPersistence lp key value]
+  (.index lp (KeyValDocument. key value)))
+
+(def builtin-indexers
+  {:overwrite #(OverwriteIndexer.)
+   :sum       #(LongSumIndexer.)})
+
 (defn kv-indexer
   "Accepts a var OR a vector of a var and arguments. If this occurs,
   the var will be applied to the other arguments before returning a
@@ -46,26 +64,220 @@
 
      [KeyValPersistence, key, value]
 
-  as arguments."
-  [updater-spec]
-  (KeyValIndexer. (w/fn-spec updater-spec)))
+  as arguments.
+
+  Updates that need no custom logic skip the function call: with no
+  arguments or :overwrite (and for #'overwrite-kv) documents are
+  indexed as they come, and :sum adds numeric values to the stored
+  ones as longs."
+  ([] (kv-indexer :overwrite))
+  ([updater-spec]
+     (cond (= #'overwrite-kv updater-spec)
+           (OverwriteIndexer.)
+
+           (keyword? updater-spec)
+           (if-let [mk (builtin-indexers updater-spec)]
+             (mk)
+             (throw (IllegalArgumentException.
+                     (str "Unknown indexer " updater-spec ", expected one of "
+                          (keys builtin-indexers)))))
+
+           :else (KeyValIndexer. (w/fn-spec updater-spec)))))
+
+(def default-chunk-size 1000)
+
+(defn mk-batch-indexer
+  "Like mk-indexer, but the supplied function receives documents a
+  chunk of `chunk-size` at a time:
+
+     [Persistence, java.util.List of Documents]
+
+  The list is reused between calls; copy anything that has to outlive
+  the call. Batch indexers only index the last chunk of a shard when
+  they are used through elephant-tap."
+  ([updater-spec]
+     (mk-batch-indexer updater-spec default-chunk-size))
+  ([updater-spec chunk-size]
+     (ClojureBatchIndexer. (w/fn-spec updater-spec) chunk-size)))
+
+(defn kv-batch-indexer
+  "Like kv-indexer, but the supplied function receives the keys and
+  values of a chunk of `chunk-size` documents at a time:
+
+     [KeyValPersistence, java.util.List keys, java.util.List values]
+
+  The lists are reused between calls; copy anything that has to
+  outlive the call. Batch indexers only index the last chunk of a
+  shard when they are used through elephant-tap."
+  ([updater-spec]
+     (kv-batch-indexer updater-spec default-chunk-size))
+  ([updater-spec chunk-size]
+     (KeyValBatchIndexer. (w/fn-spec updater-spec) chunk-size)))
+
+(defn last-value-wins
+  "elephant-tap `:combine` function that keeps one value per key: the
+  latest one a map task saw, and among map tasks whichever reaches the
+  reducer last, which is not defined."
+  [_ latest]
+  latest)
+
+(defn- read-shard-stats
+  [^FileSystem fs ^Path path]
+  (with-open [in (io/reader (.open fs path))]
+    (read (PushbackReader. in))))
+
+(defn read-shard-histogram
+  "Returns the records and bytes of every shard of the domain at
+  `root`, along with its most repeated keys, as written by the last
+  elephant-tap sink run with `:shard-stats?`, or nil:
+
+  {:num-shards 4
+   :shards {0 {:records 1200 :bytes 48000} ...}
+   :hot-keys [{:key \"...\" :shard 2 :records 300} ...]}
+
+  The statistics are exact, counted by the shard reducers as the pairs
+  go by, rather than estimated by a sampling job ahead of the sink. A
+  hot key is reported rather than spread over shards: readers find a
+  key in the one shard it hashes to, and its duplicates end up as a
+  single value there, so `:combine` is what takes their load off the
+  reducer."
+  [root]
+  (let [fs  (Utils/getFS root (Configuration.))
+        dir (Path. root SinkElephantDBTap/SHARD_STATS)]
+    (when (.exists fs dir)
+      (let [stats (for [status (.listStatus fs dir)]
+                    (read-shard-stats fs (.getPath status)))
+            shard-count (:num-shards (c/read-domain-spec fs root))]
+        {:num-shards shard-count
+         :shards     (into (sorted-map)
+                           (concat
+                            (for [shard (range shard-count)]
+                              [shard {:records 0 :bytes 0}])
+                            (for [{:keys [shard records bytes]} stats]
+                              [shard {:records records :bytes bytes}])))
+         :hot-keys   (->> (for [{:keys [shard hot-keys]} stats
+                                hot-key hot-keys]
+                            (assoc hot-key :shard shard))
+                          (sort-by :records >)
+                          (take hot-key-count)
+                          (vec))}))))
 
 (defn elephant-tap
   "Returns a tap that can be used to source and sink key-value pairs
-  to ElephantDB."
-  [root & {:keys [args domain-spec]}]
-  (let [args    (convert-clj-args (merge default-args args))
+  to ElephantDB. With `:raw-sort?` the sunk keys are sorted as raw
+  serialized bytes, see elephant<-; the job is set up for it, the
+  cluster needs no extra configuration. With `:combine` the values of
+  duplicate sunk keys are merged in the map tasks, before the shuffle,
+  and again in the reducer: `true` keeps a single value per key, see
+  last-value-wins, and a var OR a vector of a var and arguments, as
+  for mk-indexer, names a function of the old and the new value
+  returning the merged one. `:combine-cache-size` bounds the keys a
+  map task holds, see elephant<-. With `:shard-stats?` the shard
+  reducers also record the size of their shard, which replaces the
+  statistics of the domain once the sink succeeds; see
+  read-shard-histogram."
+  [root & {:keys [args domain-spec raw-sort? combine combine-cache-size
+                  shard-stats?]
+           :or {combine-cache-size default-combine-cache-size}}]
+  (let [args    (merge default-args args)
+        batch?  (instance? ClojureBatchIndexer (:indexer args))
         spec    (when domain-spec
                   (c/convert-clj-domain-spec domain-spec))
-        edb-tap (ElephantDBTap. root spec args)]
+        edb-tap (SinkElephantDBTap. root spec (convert-clj-args args)
+                                    (boolean raw-sort?)
+                                    (boolean shard-stats?))]
     (cascalog-tap edb-tap
                   (fn [pairs]
-                    [edb-tap (elephant<- edb-tap pairs)]))))
+                    [edb-tap (elephant<- edb-tap pairs
+                                         :end-of-shard? batch?
+                                         :raw-sort? raw-sort?
+                                         :stats-dir (.getShardStatsRunDir
+                                                     edb-tap)
+                                         :combiner (when combine
+                                                     (w/fn-spec
+                                                      (if (true? combine)
+                                                        #'last-value-wins
+                                                        combine)))
+                                         :combine-cache-size
+                                         combine-cache-size)]))))
+
+(def default-copy-threads 8)
+
+(defn elephant-update!
+  "Applies the [key value] pairs of `delta-src` to the latest version
+  of the domain at `root`, writing a new version. Only the shards the
+  delta routes to go through the indexer, which starts from their
+  previous contents; the indexer defaults to overwriting values, see
+  kv-indexer. Every other shard is copied over from the previous
+  version as is, rather than rebuilt, `:copy-threads` at a time.
+
+  Shards are expected at <version>/<shard> under the domain root. The
+  copies are made once the flow has succeeded and before the new
+  version is marked as succeeded, so readers never see it without
+  them; see UpdateElephantDBTap. Throws when the domain has no version
+  yet; write the first one with elephant-tap."
+  [root delta-src & {:keys [indexer args copy-threads]
+                     :or {copy-threads default-copy-threads}}]
+  (let [fs        (Utils/getFS root (Configuration.))
+        spec      (c/convert-clj-domain-spec (c/read-domain-spec fs root))
+        args      (merge default-args
+                         (assoc args :indexer (or indexer (kv-indexer))))
+        previous  (or (.mostRecentVersionPath (DomainStore. fs root))
+                      (throw (IllegalStateException.
+                              (str "No version of " root " to update; "
+                                   "write one with elephant-tap first"))))
+        touched   (touched-shards (ElephantDBTap. root spec
+                                                  (convert-clj-args args))
+                                  delta-src)
+        untouched (remove touched (range (.getNumShards spec)))
+        edb-tap   (UpdateElephantDBTap. root spec (convert-clj-args args)
+                                        previous (int-array untouched)
+                                        copy-threads)
+        start     (System/currentTimeMillis)]
+    (.info log (str "Updating " (count touched) " of " (.getNumShards spec)
+                    " shards of " root))
+    (?- edb-tap
+        (elephant<- edb-tap delta-src
+                    :end-of-shard? (instance? ClojureBatchIndexer
+                                              (:indexer args))))
+    (.info log (str "Updated " root " in "
+                    (quot (- (System/currentTimeMillis) start) 1000) "s"))))
+
+(defn- reshard-plan
+  "Returns :split when every new shard is fed by a single old shard,
+  :merge when every old shard feeds a single new shard, and :rebuild
+  otherwise."
+  [target-tap old-count new-count]
+  (cond (not (mod-sharded? target-tap))  :rebuild
+        (zero? (mod new-count old-count)) :split
+        (zero? (mod old-count new-count)) :merge
+        :else                             :rebuild))
 
 (defn reshard!
+  "Copies the domain at `source-dir` to `target-dir` with `numshards`
+  shards. When the domain is sharded by hash modulo the shard count
+  and one count is a multiple of the other, pairs are routed to their
+  new shards without a sort: map-only when shards are split, with a
+  single grouping by shard when they are merged. They are still read
+  and written through the elephantdb taps, which deserialize and
+  serialize them again; only the sort, and for splits the reduce, is
+  skipped. Anything else is rebuilt through elephant-tap."
   [source-dir target-dir numshards]
   (let [fs (Utils/getFS source-dir (Configuration.))
         spec (c/read-domain-spec fs source-dir)
-        new-spec (assoc spec :num-shards numshards)]
-    (?- (elephant-tap target-dir :domain-spec new-spec)
-        (elephant-tap source-dir))))
+        new-spec (assoc spec :num-shards numshards)
+        target-tap (ElephantDBTap. target-dir
+                                   (c/convert-clj-domain-spec new-spec)
+                                   (convert-clj-args default-args))
+        plan (reshard-plan target-tap (:num-shards spec) numshards)
+        start (System/currentTimeMillis)]
+    (.info log (str "Resharding " source-dir " from " (:num-shards spec)
+                    " to " numshards " shards into " target-dir
+                    " (" (name plan) ")"))
+    (if (= :rebuild plan)
+      (?- (elephant-tap target-dir :domain-spec new-spec)
+          (elephant-tap source-dir))
+      (?- target-tap
+          (reshard<- target-tap (elephant-tap source-dir) (= :merge plan))))
+    (.info log (str "Resharded " source-dir " in "
+                    (quot (- (System/currentTimeMillis) start) 1000) "s"))))
@@ -1,10 +1,17 @@
 (ns cascalog.elephantdb.impl
   (:use cascalog.api)
-  (:import [cascalog.ops IdentityBuffer]
+  (:require [clojure.java.io :as io])
+  (:import [cascalog Util]
+           [cascalog.ops IdentityBuffer]
+           [cascalog.elephantdb ClojureBatchIndexer CombinePairs]
            [elephantdb Utils]
            [elephantdb.partition ShardingScheme]
            [elephantdb.serialize Serializer]
-           [org.apache.hadoop.io BytesWritable]))
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs Path]
+           [org.apache.hadoop.io BytesWritable]
+           [org.apache.log4j Logger]
+           [java.util Arrays PriorityQueue]))
 
 (defmapop [shard [^ShardingScheme scheme shard-count]]
   "Returns the shard to which the supplied shard-key should be
@@ -12,21 +19,235 @@
   [shard-key]
   (.shardIndex scheme shard-key shard-count))
 
-;; TODO: Replace this serialization method with the kryo ObjectBuffer.
+;; The key is serialized with the domain's own serializer rather than
+;; kryo, so the sort follows the order of the keys as stored; kryo's
+;; ObjectBuffer is not reachable through elephantdb's Serializer. Every
+;; task reuses one writable, whose buffer grows to the largest key. The
+;; serializer still returns a fresh array per key, which is copied in.
 (defmapop [mk-sortable-key [^Serializer serializer]]
+  "Returns the serialized shard-key in a BytesWritable that is reused
+  for the next key, so it must be consumed before then."
+  {:stateful true}
+  ([] (BytesWritable.))
+  ([^BytesWritable buffer shard-key]
+     (let [^bytes bytes (.serialize serializer shard-key)]
+       (.set buffer bytes 0 (alength bytes))
+       buffer))
+  ([buffer] nil))
+
+;; Compared in the shuffle straight from the serialized stream by
+;; Cascading's BytesSerialization, which SinkElephantDBTap
+;; registers on the job.
+(defmapop [mk-raw-sortable-key [^Serializer serializer]]
   [shard-key]
-  (BytesWritable.
-   (.serialize serializer shard-key)))
+  (.serialize serializer shard-key))
 
-(defn elephant<-
+(def ^Logger log (Logger/getLogger "cascalog.elephantdb"))
+
+(defmapop [log-progress [every]]
+  "Passes the pair through, logging how many pairs the task has seen
+  every `every` pairs."
+  {:stateful true}
+  ([] (atom 0))
+  ([counter key value]
+     (when (zero? (mod (swap! counter inc) every))
+       (.info log (str "Routed " @counter " pairs")))
+     [key value])
+  ([counter]
+     (.info log (str "Routed " @counter " pairs in total"))))
+
+(defn mod-sharded?
+  "True when the domain shards keys by hash modulo the shard count, so
+  a key's shard under n shards determines its shard under any
+  multiple or divisor of n."
+  [elephant-tap]
+  (= "HashModScheme"
+     (.getSimpleName (class (.getShardScheme (.getSpec elephant-tap))))))
+
+(defn reshard<-
+  "Routes the pairs of `kv-src`, as read from another domain, to their
+  shards in `elephant-tap` without sorting them. When every target
+  shard is fed by a single source shard the query is map-only;
+  otherwise `group?` must be set and the pairs are only grouped by
+  shard."
+  [elephant-tap kv-src group?]
+  (let [spec        (.getSpec elephant-tap)
+        scheme      (.getShardScheme spec)
+        shard-count (.getNumShards spec)]
+    (if group?
+      (<- [!shard !key !value]
+          (kv-src !keyraw !valueraw)
+          (log-progress [1000000] !keyraw !valueraw :> !k !v)
+          (shard [scheme shard-count] !k :> !shard)
+          ((IdentityBuffer.) !k !v :> !key !value))
+      (<- [!shard !key !value]
+          (kv-src !keyraw !valueraw)
+          (log-progress [1000000] !keyraw !valueraw :> !key !value)
+          (shard [scheme shard-count] !key :> !shard)))))
+
+(defn touched-shards
+  "Returns the set of shards of `elephant-tap` that the keys of
+  `kv-src` are routed to."
   [elephant-tap kv-src]
+  (let [spec        (.getSpec elephant-tap)
+        scheme      (.getShardScheme spec)
+        shard-count (.getNumShards spec)]
+    (->> (??<- [?shard]
+               (kv-src ?key _)
+               (shard [scheme shard-count] ?key :> ?shard)
+               (:distinct true))
+         (map first)
+         (set))))
+
+(defbufferop end-of-shard
+  "Passes the key-value pairs of a shard through, followed by the
+  end-of-shard pair on which a batch indexer indexes its last chunk."
+  [pairs]
+  (concat pairs [[ClojureBatchIndexer/END_OF_SHARD nil]]))
+
+(defn- same-key?
+  [a b]
+  (if (instance? BytesWritable a)
+    (= a b)
+    (Arrays/equals ^bytes a ^bytes b)))
+
+(defn- sort-key-size
+  [sort-key]
+  (if (instance? BytesWritable sort-key)
+    (.getLength ^BytesWritable sort-key)
+    (alength ^bytes sort-key)))
+
+;; The tuples handed to shard-pairs are [shard sort-key key value].
+
+(defn- merge-runs
+  "Lazily turns the tuples of a shard into [key value] pairs, merging
+  the values of adjacent tuples that share a sort key with
+  `merge-fn`."
+  [merge-fn tuples]
+  (lazy-seq
+   (when-let [[[_ sort-key key value] & more] (seq tuples)]
+     (let [[run others] (split-with #(same-key? sort-key (second %)) more)]
+       (cons [key (reduce merge-fn value (map #(nth % 3) run))]
+             (merge-runs merge-fn others))))))
+
+(def hot-key-count 10)
+
+(defn- printable-key
+  [key]
+  (pr-str (if (instance? (Class/forName "[B") key)
+            (vec key)
+            key)))
+
+(defn- write-shard-stats!
+  [dir stats]
+  (let [fs (Utils/getFS dir (Configuration.))]
+    (with-open [out (io/writer (.create fs (Path. dir (str (:shard stats)))
+                                        true))]
+      (binding [*out* out]
+        (pr stats)))))
+
+(defn- record-shard-stats
+  "Passes the tuples of a shard through while counting its records,
+  its serialized bytes and its most repeated keys, and writes them to
+  `dir` once the tuples run out."
+  [^Serializer serializer dir tuples]
+  (let [shard   (atom nil)
+        records (atom 0)
+        bytes   (atom 0)
+        run     (atom nil)
+        hot     (PriorityQueue. (inc hot-key-count)
+                                (comparator #(< (:records %1) (:records %2))))
+        end-run (fn []
+                  (when-let [[_ key n] @run]
+                    (when (> n 1)
+                      (.add hot {:key (printable-key key) :records n})
+                      (when (> (.size hot) hot-key-count)
+                        (.poll hot)))))]
+    (concat (for [[s sort-key key value :as tuple] tuples]
+              (do (reset! shard s)
+                  (swap! records inc)
+                  (swap! bytes + (sort-key-size sort-key)
+                         (alength ^bytes (.serialize serializer value)))
+                  (if (and @run (same-key? sort-key (first @run)))
+                    (swap! run update-in [2] inc)
+                    (do (end-run)
+                        (reset! run [sort-key key 1])))
+                  tuple))
+            (lazy-seq
+             (end-run)
+             (write-shard-stats! dir {:shard    @shard
+                                      :records  @records
+                                      :bytes    @bytes
+                                      :hot-keys (vec (sort-by :records >
+                                                              (seq hot)))})
+             nil))))
+
+(defbufferop [shard-pairs [merge-spec end-of-shard? stats-dir serializer]]
+  "Emits the sorted pairs of a shard. Given the fn-spec `merge-spec`
+  of a two-argument function, the values of each key are merged with
+  it. With `stats-dir` the size of the shard is written there, see
+  record-shard-stats. With `end-of-shard?` the shard is closed by the
+  end-of-shard pair."
+  [tuples]
+  (let [tuples (if stats-dir
+                 (record-shard-stats serializer stats-dir tuples)
+                 tuples)]
+    (concat (if merge-spec
+              (merge-runs (Util/bootFn merge-spec) tuples)
+              (for [[_ _ key value] tuples]
+                [key value]))
+            (when end-of-shard?
+              [[ClojureBatchIndexer/END_OF_SHARD nil]]))))
+
+(def default-combine-cache-size 10000)
+
+(defn elephant<-
+  "Groups the key-value pairs of `kv-src` by shard, sorted by key. With
+  `:end-of-shard?` set, every shard is closed by the end-of-shard pair
+  batch indexers rely on. With `:raw-sort?` set, keys are sorted as
+  byte arrays compared in their serialized form, without a writable
+  to deserialize; the tap must then be a SinkElephantDBTap made with
+  rawSort, which registers the serialization that compares them.
+
+  With a `:combiner`, the fn-spec of a function of two values, every
+  map task merges the values of the keys it sees repeated before they
+  reach the shuffle, holding up to `:combine-cache-size` keys at a
+  time; see CombinePairs. The shard reducer merges what is left of the
+  duplicates from different tasks, in no particular order, so the
+  function should not care which value comes first.
+
+  With a `:stats-dir` every reducer writes the records, bytes and most
+  repeated keys of its shard to that directory, see
+  record-shard-stats. The bytes are those of the serialized key and
+  value, the value being serialized for the count in the reducer so
+  nothing is added to the shuffle."
+  [elephant-tap kv-src & {:keys [end-of-shard? raw-sort? combiner
+                                 combine-cache-size stats-dir]
+                          :or {combine-cache-size
+                               default-combine-cache-size}}]
   (let [spec        (.getSpec elephant-tap)
         scheme      (.getShardScheme spec)
         shard-count (.getNumShards spec)
-        serializer  (Utils/makeSerializer spec)]
-    (<- [!shard !key !value]
-        (kv-src !keyraw !valueraw)
-        (shard [scheme shard-count] !keyraw :> !shard)
-        (mk-sortable-key [serializer] !keyraw :> !sort-key)
-        (:sort !sort-key)
-        ((IdentityBuffer.) !keyraw !valueraw :> !key !value))))
+        serializer  (Utils/makeSerializer spec)
+        sort-key-op (if raw-sort? mk-raw-sortable-key mk-sortable-key)
+        keyed       (<- [!shard !sort-key !key !value]
+                        (kv-src !key !value)
+                        (shard [scheme shard-count] !key :> !shard)
+                        (sort-key-op [serializer] !key :> !sort-key))
+        keyed       (if combiner
+                      (<- [!shard !sort-key !key !value]
+                          (keyed !s !sk !k !v)
+                          ((CombinePairs. combiner combine-cache-size)
+                           !s !sk !k !v :> !shard !sort-key !key !value))
+                      keyed)]
+    (if (or combiner stats-dir)
+      (<- [!shard !key !value]
+          (keyed !shard !sort-key !keyraw !valueraw)
+          (:sort !sort-key)
+          (shard-pairs [combiner end-of-shard? stats-dir serializer]
+                       !shard !sort-key !keyraw !valueraw :> !key !value))
+      (let [buffer (if end-of-shard? end-of-shard (IdentityBuffer.))]
+        (<- [!shard !key !value]
+            (keyed !shard !sort-key !keyraw !valueraw)
+            (:sort !sort-key)
+            (buffer !keyraw !valueraw :> !key !value))))))
@@ -0,0 +1,95 @@
+package cascalog.elephantdb;
+
+import cascalog.Util;
+import clojure.lang.IFn;
+import elephantdb.document.Document;
+import elephantdb.document.KeyValDocument;
+import elephantdb.index.Indexer;
+import elephantdb.persistence.Persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers documents and hands them to the Clojure function a chunk at a time, as
+ *
+ *     [Persistence, List<Document>]
+ *
+ * so the per-document cost is a list append instead of a function call. The list is reused
+ * between chunks; the function must not hold on to it.
+ *
+ * A chunk is handed over when it is full, when documents start arriving for another shard, and
+ * when the end-of-shard document elephant<- appends to every shard comes through. The indexer
+ * sees no other signal that a shard is done, so it is only safe to use through elephant-tap.
+ */
+public class ClojureBatchIndexer implements Indexer {
+    /** Key of the document that closes a shard; it is never indexed. */
+    public static final String END_OF_SHARD = "cascalog.elephantdb/end-of-shard";
+
+    Object[] spec;
+    int chunkSize;
+    transient IFn fn = null;
+    transient Persistence current = null;
+    transient List<Document> chunk = null;
+
+    public ClojureBatchIndexer(Object[] spec, int chunkSize) {
+        this.spec = spec;
+        this.chunkSize = chunkSize;
+    }
+
+    public static boolean isEndOfShard(Document doc) {
+        return doc instanceof KeyValDocument
+            && END_OF_SHARD.equals(((KeyValDocument) doc).key);
+    }
+
+    public void index(Persistence lp, Document doc) throws IOException {
+        if (lp != current) {
+            flush();
+            current = lp;
+        }
+        if (isEndOfShard(doc)) {
+            flush();
+            return;
+        }
+        if (add(doc) >= chunkSize)
+            flush();
+    }
+
+    /** Buffers the document, returning the number of documents in the chunk. */
+    protected int add(Document doc) {
+        if (chunk == null)
+            chunk = new ArrayList<Document>(chunkSize);
+        chunk.add(doc);
+        return chunk.size();
+    }
+
+    protected boolean isEmpty() {
+        return chunk == null || chunk.isEmpty();
+    }
+
+    protected void invoke(Persistence lp) throws Exception {
+        fn.invoke(lp, chunk);
+    }
+
+    protected void clear() {
+        chunk.clear();
+    }
+
+    private void flush() throws IOException {
+        if (isEmpty())
+            return;
+        if (fn == null)
+            fn = Util.bootFn(spec);
+
+        try {
+            invoke(current);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            clear();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cascalog.elephantdb;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+/**
+ * Combines the [shard sort-key key value] tuples of a map task with a PairCombiner before they
+ * reach the shuffle. Whatever the combiner still holds when the task ends is emitted from
+ * cleanup, through the collector of the last tuple.
+ */
+public class CombinePairs extends BaseOperation implements Function {
+    private final Object[] spec;
+    private final int maxEntries;
+
+    private transient PairCombiner combiner;
+    private transient TupleEntryCollector collector;
+
+    public CombinePairs(Object[] spec, int maxEntries) {
+        super(4, Fields.ARGS);
+        this.spec = spec;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override public void prepare(FlowProcess flowProcess, OperationCall operationCall) {
+        combiner = new PairCombiner(spec, maxEntries);
+        collector = null;
+    }
+
+    public void operate(FlowProcess flowProcess, FunctionCall functionCall) {
+        TupleEntry arguments = functionCall.getArguments();
+        collector = functionCall.getOutputCollector();
+        combiner.add(arguments.getObject(0), arguments.getObject(1), arguments.getObject(2),
+            arguments.getObject(3));
+        if (combiner.isFull()) {
+            emit();
+        }
+    }
+
+    @Override public void cleanup(FlowProcess flowProcess, OperationCall operationCall) {
+        if (collector != null) {
+            emit();
+        }
+        combiner = null;
+        collector = null;
+    }
+
+    private void emit() {
+        for (Object[] tuple : combiner.drain()) {
+            collector.add(new Tuple(tuple));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package cascalog.elephantdb;
+
+import elephantdb.document.Document;
+import elephantdb.document.KeyValDocument;
+import elephantdb.persistence.Persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Like ClojureBatchIndexer, but unpacks the key/value documents into two parallel lists, so the
+ * function receives
+ *
+ *     [KeyValPersistence, List keys, List values]
+ */
+public class KeyValBatchIndexer extends ClojureBatchIndexer {
+    transient List<Object> keys = null;
+    transient List<Object> values = null;
+
+    public KeyValBatchIndexer(Object[] spec, int chunkSize) {
+        super(spec, chunkSize);
+    }
+
+    @Override protected int add(Document document) {
+        if (keys == null) {
+            keys = new ArrayList<Object>(chunkSize);
+            values = new ArrayList<Object>(chunkSize);
+        }
+        KeyValDocument doc = (KeyValDocument) document;
+        keys.add(doc.key);
+        values.add(doc.value);
+        return keys.size();
+    }
+
+    @Override protected boolean isEmpty() {
+        return keys == null || keys.isEmpty();
+    }
+
+    @Override protected void invoke(Persistence lp) throws Exception {
+        fn.invoke(lp, keys, values);
+    }
+
+    @Override protected void clear() {
+        keys.clear();
+        values.clear();
+    }
+}
@@ -0,0 +1,26 @@
+package cascalog.elephantdb;
+
+import elephantdb.document.Document;
+import elephantdb.document.KeyValDocument;
+import elephantdb.index.Indexer;
+import elephantdb.persistence.KeyValPersistence;
+import elephantdb.persistence.Persistence;
+
+import java.io.IOException;
+
+/**
+ * Adds the value of every document to the value already stored under its key, for counter
+ * domains. Values must be Numbers; the sum is kept as a long. Unlike a kv-indexer function, the
+ * arithmetic is done on primitives and only the stored sum is boxed.
+ */
+public class LongSumIndexer implements Indexer {
+
+    public void index(Persistence lp, Document document) throws IOException {
+        KeyValDocument doc = (KeyValDocument) document;
+        long sum = ((Number) doc.value).longValue();
+        Object previous = ((KeyValPersistence) lp).get(doc.key);
+        if (previous != null)
+            sum += ((Number) previous).longValue();
+        lp.index(new KeyValDocument(doc.key, sum));
+    }
+}
@@ -0,0 +1,19 @@
+package cascalog.elephantdb;
+
+import elephantdb.document.Document;
+import elephantdb.index.Indexer;
+import elephantdb.persistence.Persistence;
+
+import java.io.IOException;
+
+/**
+ * Indexes every document as is, replacing whatever the key held. This is what
+ * (kv-indexer #'overwrite-kv) does, without booting a Clojure function or unpacking the
+ * document, so byte[] keys and values go straight to the persistence.
+ */
+public class OverwriteIndexer implements Indexer {
+
+    public void index(Persistence lp, Document doc) throws IOException {
+        lp.index(doc);
+    }
+}
@@ -0,0 +1,67 @@
+package cascalog.elephantdb;
+
+import cascalog.Util;
+import clojure.lang.IFn;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses the [shard sort-key key value] tuples of a map task that share a sort key, merging
+ * their values with the Clojure function of two values, as
+ *
+ *     (merge-fn old-value new-value)
+ *
+ * At most maxEntries keys are held; once that many are, every held tuple is drained and the
+ * cache starts over, so a key may still leave the task more than once. Sort keys are BytesWritables
+ * or byte arrays; a BytesWritable is copied, since elephant<- reuses the one it sorts with.
+ */
+public class PairCombiner {
+    private final IFn fn;
+    private final int maxEntries;
+    private final Map<ByteBuffer, Object[]> cache = new LinkedHashMap<ByteBuffer, Object[]>();
+
+    public PairCombiner(Object[] spec, int maxEntries) {
+        this.fn = Util.bootFn(spec);
+        this.maxEntries = maxEntries;
+    }
+
+    /** Adds the tuple, merging its value into the held one of the same sort key if any. */
+    public void add(Object shard, Object sortKey, Object key, Object value) {
+        byte[] bytes;
+        if (sortKey instanceof BytesWritable) {
+            BytesWritable writable = (BytesWritable) sortKey;
+            bytes = Arrays.copyOf(writable.getBytes(), writable.getLength());
+            sortKey = new BytesWritable(bytes);
+        } else {
+            bytes = (byte[]) sortKey;
+        }
+        ByteBuffer id = ByteBuffer.wrap(bytes);
+        Object[] held = cache.get(id);
+        if (held == null) {
+            cache.put(id, new Object[]{shard, sortKey, key, value});
+        } else {
+            try {
+                held[3] = fn.invoke(held[3], value);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public boolean isFull() {
+        return cache.size() >= maxEntries;
+    }
+
+    /** Returns the held tuples in the order their keys first arrived, and empties the cache. */
+    public List<Object[]> drain() {
+        List<Object[]> tuples = new ArrayList<Object[]>(cache.values());
+        cache.clear();
+        return tuples;
+    }
+}
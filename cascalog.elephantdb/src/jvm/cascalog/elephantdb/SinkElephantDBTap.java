@@ -0,0 +1,164 @@
+package cascalog.elephantdb;
+
+import cascading.flow.Flow;
+import cascading.tap.TapException;
+import cascading.tuple.hadoop.BytesSerialization;
+import elephantdb.DomainSpec;
+import elephantdb.cascading.ElephantBaseTap;
+import elephantdb.cascading.ElephantDBTap;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The ElephantDBTap elephant-tap sinks through.
+ *
+ * With rawSort, for elephant<- with :raw-sort?, sinking registers Cascading's BytesSerialization in
+ * io.serializations of the job. It serializes the bare byte arrays the keys are sorted by and,
+ * being a Comparison, also compares them in the shuffle without deserializing them.
+ *
+ * With shardStats, the shard reducers write the statistics of their shards to a directory of
+ * their own for this run, see {@link #getShardStatsRunDir}. Once the flow has succeeded, and
+ * before the new version is published, that directory replaces the shard-stats directory of the
+ * domain; a failed flow leaves the statistics of the last successful run in place.
+ *
+ * Subclasses can finish the new version in {@link #beforePublish}. The tap picks the number of
+ * that version when it is initialized for sinking: the versioned store numbers versions by the
+ * time they are created, or one past the latest version when the clock lags behind it. The
+ * version written is therefore the one numbered within those bounds, see
+ * {@link #newVersionPath}.
+ */
+public class SinkElephantDBTap extends ElephantDBTap {
+    public static final String SHARD_STATS = "shard-stats";
+
+    private static final String IO_SERIALIZATIONS = "io.serializations";
+
+    private final String root;
+    private final boolean rawSort;
+    private final String shardStatsRunDir;
+    private long versionFloor = -1;
+    private long versionCeiling = -1;
+
+    public SinkElephantDBTap(String root, DomainSpec spec, ElephantBaseTap.Args args,
+        boolean rawSort, boolean shardStats) throws IOException {
+        super(root, spec, args);
+        this.root = root;
+        this.rawSort = rawSort;
+        this.shardStatsRunDir = shardStats
+            ? new Path(root, "_" + SHARD_STATS + "-" + UUID.randomUUID()).toString() : null;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /** The directory the shard reducers of this run write to, or null without shardStats. */
+    public String getShardStatsRunDir() {
+        return shardStatsRunDir;
+    }
+
+    /**
+     * The path of the version this sink wrote, once its shards exist. Fails when no version or
+     * more than one was created within the bounds noted at initialization, as when another
+     * writer creates a version at the same moment.
+     */
+    protected Path newVersionPath(FileSystem fs) throws IOException {
+        List<Long> candidates = new ArrayList<Long>();
+        for (long version : versions(fs)) {
+            if (version >= versionFloor && version <= versionCeiling) {
+                candidates.add(version);
+            }
+        }
+        if (candidates.size() != 1) {
+            throw new IOException("cannot tell the version written to " + root + " among "
+                + candidates);
+        }
+        return new Path(root, Long.toString(candidates.get(0)));
+    }
+
+    /** Called once the flow has succeeded and before the new version is marked as succeeded. */
+    protected void beforePublish(FileSystem fs) throws IOException {
+    }
+
+    private List<Long> versions(FileSystem fs) throws IOException {
+        List<Long> versions = new ArrayList<Long>();
+        FileStatus[] children = fs.listStatus(new Path(root));
+        if (children == null) {
+            return versions;
+        }
+        for (FileStatus child : children) {
+            try {
+                versions.add(Long.parseLong(child.getPath().getName()));
+            } catch (NumberFormatException e) {
+                // not a version
+            }
+        }
+        return versions;
+    }
+
+    @Override public void sinkInit(JobConf conf) throws IOException {
+        if (versionFloor == -1) {
+            long latest = -1;
+            for (long version : versions(new Path(root).getFileSystem(conf))) {
+                latest = Math.max(latest, version);
+            }
+            versionFloor = Math.min(System.currentTimeMillis(), latest + 1);
+            super.sinkInit(conf);
+            versionCeiling = Math.max(System.currentTimeMillis(), latest + 1);
+        } else {
+            super.sinkInit(conf);
+        }
+        if (rawSort) {
+            String bytes = BytesSerialization.class.getName();
+            String serializations = conf.get(IO_SERIALIZATIONS);
+            if (serializations == null || serializations.length() == 0) {
+                conf.set(IO_SERIALIZATIONS, bytes);
+            } else if (!serializations.contains(bytes)) {
+                conf.set(IO_SERIALIZATIONS, serializations + "," + bytes);
+            }
+        }
+    }
+
+    @Override public void onCompleted(Flow flow) {
+        try {
+            FileSystem fs = new Path(root).getFileSystem(flow.getJobConf());
+            boolean successful = flow.getFlowStats().isSuccessful();
+            if (successful) {
+                try {
+                    beforePublish(fs);
+                } catch (IOException e) {
+                    publishShardStats(fs, false);
+                    throw e;
+                }
+            }
+            publishShardStats(fs, successful);
+        } catch (IOException e) {
+            throw new TapException("could not complete the sink into " + root, e);
+        }
+        super.onCompleted(flow);
+    }
+
+    private void publishShardStats(FileSystem fs, boolean successful) throws IOException {
+        if (shardStatsRunDir == null) {
+            return;
+        }
+        Path run = new Path(shardStatsRunDir);
+        if (!successful) {
+            fs.delete(run, true);
+            return;
+        }
+        Path stats = new Path(root, SHARD_STATS);
+        fs.delete(stats, true);
+        if (fs.exists(run)) {
+            fs.rename(run, stats);
+        } else {
+            fs.mkdirs(stats);
+        }
+    }
+}
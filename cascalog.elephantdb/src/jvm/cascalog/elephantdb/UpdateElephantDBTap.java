@@ -0,0 +1,87 @@
+package cascalog.elephantdb;
+
+import elephantdb.DomainSpec;
+import elephantdb.cascading.ElephantBaseTap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A SinkElephantDBTap for elephant-update!, whose flow only writes the shards a delta touches. Once
+ * the flow has succeeded, and before the tap marks the new version as succeeded, the shards the
+ * delta left alone are copied over from the previous version, several at a time. If a copy fails
+ * the new version is never published.
+ *
+ * Versions are expected at root/version and shards at root/version/shard, as the versioned
+ * store lays them out.
+ */
+public class UpdateElephantDBTap extends SinkElephantDBTap {
+    private static final Log LOG = LogFactory.getLog(UpdateElephantDBTap.class);
+
+    private final String previousVersion;
+    private final int[] untouchedShards;
+    private final int copyThreads;
+
+    public UpdateElephantDBTap(String root, DomainSpec spec, ElephantBaseTap.Args args,
+        String previousVersion, int[] untouchedShards, int copyThreads) throws IOException {
+        super(root, spec, args, false, false);
+        if (previousVersion == null) {
+            throw new IllegalArgumentException("no previous version of " + root + " to update");
+        }
+        this.previousVersion = previousVersion;
+        this.untouchedShards = untouchedShards;
+        this.copyThreads = copyThreads;
+    }
+
+    @Override protected void beforePublish(FileSystem fs) throws IOException {
+        copyUntouchedShards(fs);
+    }
+
+    private void copyUntouchedShards(final FileSystem fs) throws IOException {
+        final Path from = new Path(previousVersion);
+        final Path to = newVersionPath(fs);
+        LOG.info("Copying " + untouchedShards.length + " untouched shards from " + from + " to "
+            + to);
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(copyThreads, untouchedShards.length)));
+        try {
+            List<Future<Void>> copies = new ArrayList<Future<Void>>();
+            for (final int shard : untouchedShards) {
+                copies.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        Path source = new Path(from, Integer.toString(shard));
+                        Path target = new Path(to, Integer.toString(shard));
+                        if (fs.exists(source)) {
+                            fs.delete(target, true);
+                            FileUtil.copy(fs, source, fs, target, false, fs.getConf());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while copying shards to " + to);
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("could not copy a shard to " + to)
+                .initCause(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
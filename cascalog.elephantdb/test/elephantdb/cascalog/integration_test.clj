@@ -1,13 +1,19 @@
 (ns elephantdb.cascalog.integration-test
   (:use clojure.test
-        elephantdb.cascalog.core
+        [cascalog.elephantdb core conf]
+        [cascalog.elephantdb.impl :only (touched-shards)]
         [cascalog api testing])
   (:require [elephantdb.common.testing :as t]
+            [cascalog.workflow :as w]
             [elephantdb.common.config :as config]
             [cascalog.ops :as c])
-  (:import [elephantdb.persistence JavaBerkDB KeyValPersistence]
+  (:import [cascalog.elephantdb PairCombiner]
+           [elephantdb.persistence JavaBerkDB KeyValPersistence]
            [elephantdb.document KeyValDocument]
-           [elephantdb Utils]))
+           [elephantdb.cascading ElephantDBTap]
+           [elephantdb.store DomainStore]
+           [elephantdb Utils]
+           [org.apache.hadoop.fs Path]))
 
 (defn merge-indexer
   [^KeyValPersistence lp doc]
@@ -47,6 +53,172 @@
         (t/with-single-service-handler [handler {"domain" tmp}]
           (t/check-domain "domain" handler data3))))))
 
+(defn merge-batch-indexer
+  [^KeyValPersistence lp keys vals]
+  (doseq [[key val] (map vector keys vals)]
+    (merge-indexer lp (KeyValDocument. key val))))
+
+(deftest test-batch-indexer
+  (t/with-fs-tmp [fs tmp]
+    (let [data  [[0 1]
+                 [1 [2 2]]
+                 [3 [3 3 4]]]
+          data2 [[0 10]
+                 [3 3]
+                 [10 10]]
+          data3 [[0 [1 10]]
+                 [1 [2 2]]
+                 [3 [3 3 4 3]]
+                 [10 10]]]
+      (with-tmp-sources [source  data
+                         source2 data2]
+        (?- (elephant-tap tmp :domain-spec {:num-shards  4
+                                            :coordinator (JavaBerkDB.)})
+            source)
+        (?- (elephant-tap tmp :args {:indexer (kv-batch-indexer
+                                               #'merge-batch-indexer 2)})
+            source2)
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler data3))))))
+
+(deftest test-sum-indexer
+  (t/with-fs-tmp [fs tmp]
+    (let [data  [[0 1] [1 2] [2 3]]
+          data2 [[0 10] [2 1] [5 5]]]
+      (with-tmp-sources [source  data
+                         source2 data2]
+        (?- (elephant-tap tmp :domain-spec {:num-shards  2
+                                            :coordinator (JavaBerkDB.)})
+            source)
+        (?- (elephant-tap tmp :args {:indexer (kv-indexer :sum)})
+            source2)
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler [[0 11] [1 2] [2 4] [5 5]]))))))
+
+;; The sort keys are bare byte arrays here; the tap registers the
+;; serialization that compares them.
+(deftest test-raw-sort
+  (t/with-fs-tmp [fs tmp]
+    (let [data [[0       1]
+                [1       [2 2]]
+                [3       [3 3 4]]
+                [[1 1]   [2 2]]
+                [[2 2 2] [3 3 3]]]]
+      (with-tmp-sources [source data]
+        (?- (elephant-tap tmp
+                          :domain-spec {:num-shards  4
+                                        :coordinator (JavaBerkDB.)}
+                          :raw-sort? true)
+            source)
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler data))))))
+
+(defn sum-values [x y]
+  (+ x y))
+
+;; What a map task hands the shuffle: one tuple per key while the
+;; cache has room, and everything it holds whenever it fills up.
+(deftest test-pair-combiner
+  (let [pairs    [[0 1] [0 2] [1 3] [0 4] [2 5] [1 6]]
+        combine  (fn [max-entries]
+                   (let [combiner (PairCombiner. (w/fn-spec #'sum-values)
+                                                 max-entries)
+                         drained  (doall
+                                   (mapcat (fn [[k v]]
+                                             (.add combiner (int 0) (t/barr k)
+                                                   k v)
+                                             (when (.isFull combiner)
+                                               (.drain combiner)))
+                                           pairs))]
+                     (concat drained (.drain combiner))))
+        shuffled (fn [tuples] (map (fn [[_ _ k v]] [k v]) tuples))]
+    (is (= [[0 7] [1 9] [2 5]] (shuffled (combine 100))))
+    (is (= [[0 3] [1 3] [0 4] [2 5] [1 6]] (shuffled (combine 2))))))
+
+(deftest test-combine
+  (t/with-fs-tmp [fs tmp]
+    (let [data [[0 1]
+                [0 2]
+                [1 3]
+                [0 4]]]
+      (with-tmp-sources [source data]
+        (?- (elephant-tap tmp
+                          :domain-spec {:num-shards  2
+                                        :coordinator (JavaBerkDB.)}
+                          :combine #'sum-values)
+            source)
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler [[0 7] [1 3]]))))))
+
+;; Fails the flow it runs in.
+(deffilterop explode [_]
+  (throw (RuntimeException. "explode")))
+
+(deftest test-shard-stats
+  (t/with-fs-tmp [fs tmp]
+    (let [data [[0 1]
+                [0 1]
+                [1 3]
+                [2 4]]]
+      (with-tmp-sources [source data]
+        (?- (elephant-tap tmp
+                          :domain-spec {:num-shards  4
+                                        :coordinator (JavaBerkDB.)}
+                          :shard-stats? true)
+            source)
+        (let [{:keys [num-shards shards hot-keys]} (read-shard-histogram tmp)]
+          (is (= 4 num-shards))
+          (is (= (range 4) (keys shards)))
+          (is (= 4 (reduce + (map :records (vals shards)))))
+          (is (every? pos? (map :bytes (filter (comp pos? :records)
+                                               (vals shards)))))
+          (is (= [{:key "0" :records 2}]
+                 (map #(dissoc % :shard) hot-keys))))
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler [[0 1] [1 3] [2 4]]))
+        (let [histogram (read-shard-histogram tmp)]
+          (is (thrown? Exception
+                       (?- (elephant-tap tmp :shard-stats? true)
+                           (<- [?k ?v]
+                               (source ?k ?v)
+                               (explode ?k)))))
+          (is (= histogram (read-shard-histogram tmp))))))))
+
+;; Keys 0 and 4 share a shard; keys 1 and 2 sit in shards the delta
+;; never touches.
+(deftest test-update
+  (t/with-fs-tmp [fs tmp]
+    (let [data  [[0 1]
+                 [1 2]
+                 [2 3]
+                 [4 5]]
+          data2 [[0 10]
+                 [8 8]]]
+      (with-tmp-sources [source  data
+                         source2 data2]
+        (?- (elephant-tap tmp :domain-spec {:num-shards  4
+                                            :coordinator (JavaBerkDB.)})
+            source)
+        (elephant-update! tmp source2)
+        ;; The shards the delta leaves alone are copied into the new
+        ;; version rather than rebuilt.
+        (let [spec      (config/convert-clj-domain-spec
+                         (config/read-domain-spec fs tmp))
+              tap       (ElephantDBTap. tmp spec
+                                        (convert-clj-args default-args))
+              untouched (remove (touched-shards tap source2)
+                                (touched-shards tap source))
+              version   (.mostRecentVersionPath (DomainStore. fs tmp))]
+          (is (seq untouched))
+          (doseq [shard untouched]
+            (is (.exists fs (Path. version (str shard))))))
+        (t/with-single-service-handler [handler {"domain" tmp}]
+          (t/check-domain "domain" handler [[0 10]
+                                            [1 2]
+                                            [2 3]
+                                            [4 5]
+                                            [8 8]]))))))
+
 (defn test-to-int [bw]
   (int (first (.get bw))))
 
@@ -78,7 +250,7 @@
                (c/count ?count)))))
 
 (deftest test-reshard
-  (t/with-fs-tmp [fs tmpout1 tmpout2]
+  (t/with-fs-tmp [fs tmpout1 tmpout2 tmpout3]
     (let [pairs [[(t/barr 0) (t/barr 1)]
                  [(t/barr 1) (t/barr 2)]
                  [(t/barr 2) (t/barr 3)]
@@ -96,4 +268,8 @@
         (reshard! dpath tmpout2 2)
         (is (= 1 (:num-shards (config/read-domain-spec fs tmpout1))))
         (t/with-single-service-handler [handler {"domain" tmpout2}]
+          (t/check-domain "domain" handler pairs))
+        (reshard! tmpout1 tmpout3 3)
+        (is (= 3 (:num-shards (config/read-domain-spec fs tmpout3))))
+        (t/with-single-service-handler [handler {"domain" tmpout3}]
           (t/check-domain "domain" handler pairs))))))